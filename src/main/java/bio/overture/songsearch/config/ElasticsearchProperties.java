@@ -18,8 +18,12 @@
 
 package bio.overture.songsearch.config;
 
+import java.time.Duration;
+import java.util.List;
 import lombok.Data;
+import lombok.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.ConstructorBinding;
 import org.springframework.context.annotation.Configuration;
 
 @Data
@@ -28,10 +32,87 @@ import org.springframework.context.annotation.Configuration;
 public class ElasticsearchProperties {
   String host;
   Integer port;
+  // host:port of each node requests are spread over, host and port are used when not set
+  List<String> hosts;
+  NodeSelection nodeSelector;
+  Connection connection;
   Boolean useHttps;
   Boolean useAuthentication;
   String username;
   String password;
   String analysisCentricIndex;
   String fileCentricIndex;
+  SearchBatching searchBatching;
+  ConcurrencyLimit concurrencyLimit;
+  CircuitBreaker circuitBreaker;
+  ResponseExecutor responseExecutor;
+
+  /** Which nodes requests are sent to, by role. Nodes whose roles are not known are kept. */
+  public enum NodeSelection {
+    ANY,
+    SKIP_DEDICATED_MASTERS,
+    DATA
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class Connection {
+    Duration connectTimeout;
+    Duration socketTimeout;
+    // how long a request waits for a connection from the pool
+    Duration connectionRequestTimeout;
+    Integer maxConnTotal;
+    Integer maxConnPerRoute;
+    // how long an idle connection is kept open for reuse
+    Duration keepAlive;
+    // threads of the client's IO reactor, one per processor when not set
+    Integer ioThreadCount;
+    // ask for gzip compressed responses
+    Boolean compression;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class ResponseExecutor {
+    // threads responses are handed off to from the IO reactor, one per processor when not set
+    Integer threads;
+    // responses waiting for a thread, past this they are handled on the IO reactor thread
+    Integer queueCapacity;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class SearchBatching {
+    Boolean enabled;
+    // how long the first search of a batch waits for others to join it
+    Duration window;
+    // a batch this large is sent right away without waiting out the window
+    Integer maxBatchSize;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class ConcurrencyLimit {
+    Boolean enabled;
+    Integer initialLimit;
+    Integer minLimit;
+    Integer maxLimit;
+    // a response slower than this counts as Elasticsearch being overloaded
+    Duration slowLatency;
+    // the limit is multiplied by this on a slow or failed response
+    Double backoffRatio;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class CircuitBreaker {
+    Boolean enabled;
+    // fraction of failed requests, out of the last slidingWindowSize, that opens the breaker
+    Double failureRateThreshold;
+    Integer slidingWindowSize;
+    // the breaker stays closed until at least this many requests were seen
+    Integer minimumRequests;
+    // how long requests fail fast before one is let through to try Elasticsearch again
+    Duration openDuration;
+  }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.config;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.NonNull;
+import lombok.val;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+/**
+ * Records the size of Elasticsearch response bodies as they arrive, which the high level client
+ * does not expose once a response is parsed. Tagged like the request metrics, by the operation and
+ * index read off the request path.
+ */
+class ElasticsearchResponseSizeRecorder implements HttpResponseInterceptor {
+  private final MeterRegistry meterRegistry;
+
+  ElasticsearchResponseSizeRecorder(@NonNull MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  @Override
+  public void process(HttpResponse response, HttpContext context) {
+    val contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+    val request = HttpCoreContext.adapt(context).getRequest();
+    if (contentLength == null || request == null) {
+      return;
+    }
+
+    // e.g. /analysis_centric/_search, /_msearch or /_search/scroll
+    val uri = request.getRequestLine().getUri();
+    val path = uri.contains("?") ? uri.substring(0, uri.indexOf('?')) : uri;
+    val segments = path.replaceFirst("^/", "").split("/");
+    val index = segments[0].startsWith("_") ? "none" : segments[0];
+    final String operation;
+    if (path.endsWith("/_search/scroll")) {
+      operation = "scroll";
+    } else if (path.endsWith("/_msearch")) {
+      operation = "msearch";
+    } else if (path.endsWith("/_search")) {
+      operation = "search";
+    } else {
+      operation = "other";
+    }
+
+    try {
+      DistributionSummary.builder("songsearch.es.response.size")
+          .description("Size of Elasticsearch response bodies")
+          .baseUnit("bytes")
+          .tag("operation", operation)
+          .tag("index", index)
+          .publishPercentiles(0.5, 0.99)
+          .register(meterRegistry)
+          .record(Long.parseLong(contentLength.getValue()));
+    } catch (NumberFormatException e) {
+      // not worth failing the response over
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.config;
+
+import lombok.val;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HeapBufferedAsyncResponseConsumer;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+
+/**
+ * Buffers responses like the client's default consumer and inflates the gzip compressed ones, which
+ * this version of the client does not do on its own. Responses are only compressed when the
+ * request asks for it with an Accept-Encoding header.
+ */
+class GzipResponseConsumerFactory implements HttpAsyncResponseConsumerFactory {
+  private static final String GZIP = "gzip";
+
+  // same as the client's default
+  private static final int BUFFER_LIMIT_BYTES = 100 * 1024 * 1024;
+
+  @Override
+  public HttpAsyncResponseConsumer<HttpResponse> createHttpAsyncResponseConsumer() {
+    return new HeapBufferedAsyncResponseConsumer(BUFFER_LIMIT_BYTES) {
+      @Override
+      protected HttpResponse buildResult(HttpContext context) throws Exception {
+        val response = super.buildResult(context);
+        val entity = response.getEntity();
+        if (entity != null && isGzip(entity.getContentEncoding())) {
+          response.setEntity(new InflatedEntity(entity));
+        }
+        return response;
+      }
+    };
+  }
+
+  private static boolean isGzip(Header contentEncoding) {
+    return contentEncoding != null && GZIP.equalsIgnoreCase(contentEncoding.getValue());
+  }
+
+  // no longer carries the content encoding, so it is not inflated a second time
+  private static class InflatedEntity extends HttpEntityWrapper {
+    InflatedEntity(HttpEntity compressed) {
+      super(new GzipDecompressingEntity(compressed));
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      return null;
+    }
+  }
+}
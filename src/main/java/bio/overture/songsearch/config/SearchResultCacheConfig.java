@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.config;
+
+import bio.overture.songsearch.config.SongSearchProperties.CacheSpec;
+import bio.overture.songsearch.config.SongSearchProperties.ResultCache;
+import bio.overture.songsearch.model.Analysis;
+import bio.overture.songsearch.model.File;
+import bio.overture.songsearch.model.SearchResult;
+import bio.overture.songsearch.service.SearchResultCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.function.Function;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/** One result cache per entity type, so each can be sized and expire on its own */
+@Slf4j
+@Configuration
+public class SearchResultCacheConfig {
+  private final SongSearchProperties properties;
+  private final MeterRegistry meterRegistry;
+
+  @Autowired
+  public SearchResultCacheConfig(
+      @NonNull SongSearchProperties properties, @NonNull MeterRegistry meterRegistry) {
+    this.properties = properties;
+    this.meterRegistry = meterRegistry;
+  }
+
+  @Bean
+  public SearchResultCache<SearchResult<Analysis>> analysisSearchResultCache() {
+    return createCache("analyses", ResultCache::getAnalyses);
+  }
+
+  @Bean
+  public SearchResultCache<SearchResult<File>> fileSearchResultCache() {
+    return createCache("files", ResultCache::getFiles);
+  }
+
+  private <V> SearchResultCache<V> createCache(
+      String name, Function<ResultCache, CacheSpec> cacheSpec) {
+    val resultCache = properties.getResultCache();
+    if (resultCache == null || !Boolean.TRUE.equals(resultCache.getEnabled())) {
+      log.info(String.format("Result cache for %s is disabled.", name));
+      return SearchResultCache.disabled();
+    }
+    val spec = cacheSpec.apply(resultCache);
+    log.info(
+        String.format(
+            "Caching %s results, up to %d bytes for %s.",
+            name, spec.getMaximumBytes(), spec.getTtl()));
+    return SearchResultCache.create(name, spec, meterRegistry);
+  }
+}
@@ -19,7 +19,9 @@
 package bio.overture.songsearch.config;
 
 import com.google.common.collect.ImmutableList;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
 import lombok.Data;
 import lombok.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -32,6 +34,12 @@ import org.springframework.context.annotation.Configuration;
 public class SongSearchProperties {
   WorkflowRunParameterKeys workflowRunParameterKeys;
 
+  ResultCache resultCache;
+
+  SlowQueries slowQueries;
+
+  SearchBudgets searchBudgets;
+
   @Value
   @ConstructorBinding
   public static class WorkflowRunParameterKeys {
@@ -41,4 +49,62 @@ public class SongSearchProperties {
       this.analysisId = ImmutableList.copyOf(analysisId);
     }
   }
+
+  @Value
+  @ConstructorBinding
+  public static class ResultCache {
+    Boolean enabled;
+    CacheSpec analyses;
+    CacheSpec files;
+    Invalidation invalidation;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class CacheSpec {
+    // upper bound on the approximate size of the cached results, not on the number of entries
+    Long maximumBytes;
+    Duration ttl;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class Invalidation {
+    Boolean enabled;
+    Duration pollInterval;
+    // how far back each poll looks again, for documents that became searchable after a poll that
+    // had already moved past their updated_at
+    Duration overlap;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class SlowQueries {
+    Boolean enabled;
+    // searches taking longer than this, from sending to response, are logged
+    Duration threshold;
+    // fraction of slow searches run again with profiling
+    Double profileSampleRate;
+    // budget of a profiled search, it is sent again only when Elasticsearch has room to spare
+    Duration profileTimeout;
+    // how many of the latest slow searches the actuator endpoint shows
+    Integer bufferSize;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class SearchBudgets {
+    SearchBudget defaults;
+    // by operation, as in the songsearch.graphql.fetch metric, e.g. analyses or Run.inputAnalyses
+    Map<String, SearchBudget> operations;
+  }
+
+  @Value
+  @ConstructorBinding
+  public static class SearchBudget {
+    // time from the data fetcher starting, searches are given what is left of it as their timeout
+    Duration timeout;
+    // whether shards that timed out or failed may be left out of the results
+    Boolean allowPartialResults;
+  }
 }
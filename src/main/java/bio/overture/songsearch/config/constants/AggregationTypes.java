@@ -0,0 +1,12 @@
+package bio.overture.songsearch.config.constants;
+
+import static lombok.AccessLevel.PRIVATE;
+
+import lombok.NoArgsConstructor;
+
+@NoArgsConstructor(access = PRIVATE)
+public class AggregationTypes {
+  public static final String TERMS = "terms";
+  public static final String CARDINALITY = "cardinality";
+  public static final String DATE_HISTOGRAM = "dateHistogram";
+}
@@ -10,4 +10,11 @@ public class EsDefaults {
   // https://www.elastic.co/guide/en/elasticsearch/reference/7.x/paginate-search-results.html
   public static final Integer ES_PAGE_DEFAULT_SIZE = 10;
   public static final Integer ES_PAGE_DEFAULT_FROM = 0;
+  // Default value of index.max_result_window:
+  // https://www.elastic.co/guide/en/elasticsearch/reference/7.x/index-modules.html
+  public static final Integer ES_MAX_RESULT_WINDOW = 10_000;
+  // Page size and keep alive of the scroll contexts used to export whole result sets:
+  // https://www.elastic.co/guide/en/elasticsearch/reference/7.x/paginate-search-results.html#scroll-search-results
+  public static final Integer ES_SCROLL_SIZE = 1_000;
+  public static final String ES_SCROLL_KEEP_ALIVE = "1m";
 }
@@ -32,6 +32,7 @@ public class SearchFields {
   public static final String FILE_NAME = "name";
   public static final String FILE_ACCESS = "fileAccess";
   public static final String FILE_DATA_TYPE = "dataType";
+  public static final String FILE_TYPE = "fileType";
   public static final String STUDY_ID = "studyId";
   public static final String DONOR_ID = "donorId";
   public static final String SPECIMEN_ID = "specimenId";
@@ -35,6 +35,8 @@ public class AuthDisabledConfig {
         .pathMatchers("/graphql/**")
         .permitAll()
         .pathMatchers("/actuator/**")
+        .permitAll()
+        .pathMatchers("/export/**")
         .permitAll();
     return http.build();
   }
@@ -27,6 +27,7 @@ import java.security.KeyFactory;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.*;
+import java.util.stream.Stream;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
@@ -70,8 +71,12 @@ public class AuthEnabledConfig {
         .authorizeExchange()
         .pathMatchers("/graphql/**")
         .permitAll() // authentication done via spring, authorization done in graphql
+        .pathMatchers("/actuator/slowqueries/**")
+        .hasAnyAuthority(queryScopes()) // slow searches carry the queries and filters users sent
         .pathMatchers("/actuator/**")
         .permitAll()
+        .pathMatchers("/export/**")
+        .hasAnyAuthority(queryScopes())
         .and()
         .authorizeExchange()
         .anyExchange()
@@ -84,6 +89,14 @@ public class AuthEnabledConfig {
     return http.build();
   }
 
+  // exports and slow searches are read only, any scope that allows graphql queries allows them
+  private String[] queryScopes() {
+    val graphqlScopes = authProperties.getGraphqlScopes();
+    return Stream.concat(
+            graphqlScopes.getQueryOnly().stream(), graphqlScopes.getQueryAndMutation().stream())
+        .toArray(String[]::new);
+  }
+
   private Converter<Jwt, Mono<AbstractAuthenticationToken>> grantedAuthoritiesExtractor() {
     JwtAuthenticationConverter jwtAuthenticationConverter = new JwtAuthenticationConverter();
     jwtAuthenticationConverter.setJwtGrantedAuthoritiesConverter(
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.controller;
+
+import bio.overture.songsearch.model.enums.ExportFormat;
+import bio.overture.songsearch.service.ExportService;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.NonNull;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Bulk export of everything matching a filter, for pipelines that would otherwise page through the
+ * graphql search queries. Query parameters other than `format` are filters, named like the graphql
+ * filter fields (e.g. `/export/files?studyId=ABC&dataType=Aligned%20Reads&format=tsv`), any other
+ * parameter is a bad request.
+ *
+ * <p>The body is written as it is scrolled out of Elasticsearch and the server only pulls the next
+ * page once the client has read the previous one.
+ */
+@RestController
+@RequestMapping("/export")
+public class ExportController {
+  private static final String FORMAT_PARAM = "format";
+
+  private final ExportService exportService;
+
+  @Autowired
+  public ExportController(@NonNull ExportService exportService) {
+    this.exportService = exportService;
+  }
+
+  @GetMapping("/files")
+  public Mono<Void> exportFiles(
+      @RequestParam Map<String, String> params, ServerHttpResponse response) {
+    return export("files", params, response, exportService::exportFiles);
+  }
+
+  @GetMapping("/analyses")
+  public Mono<Void> exportAnalyses(
+      @RequestParam Map<String, String> params, ServerHttpResponse response) {
+    return export("analyses", params, response, exportService::exportAnalyses);
+  }
+
+  private static Mono<Void> export(
+      String name, Map<String, String> params, ServerHttpResponse response, Exporter exporter) {
+    val format = parseFormat(params.getOrDefault(FORMAT_PARAM, ExportFormat.NDJSON.toString()));
+    val filter = new HashMap<String, Object>(params);
+    filter.remove(FORMAT_PARAM);
+    final Flux<DataBuffer> body;
+    try {
+      body = exporter.apply(filter, format, response.bufferFactory());
+    } catch (IllegalArgumentException e) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+    }
+
+    response.getHeaders().setContentType(MediaType.parseMediaType(format.getMediaType()));
+    response
+        .getHeaders()
+        .setContentDisposition(
+            ContentDisposition.builder("attachment").filename(name + "." + format).build());
+    return response.writeWith(body);
+  }
+
+  private static ExportFormat parseFormat(String value) {
+    try {
+      return ExportFormat.fromValue(value);
+    } catch (IllegalArgumentException e) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+    }
+  }
+
+  @FunctionalInterface
+  private interface Exporter {
+    Flux<DataBuffer> apply(
+        Map<String, Object> filter, ExportFormat format, DataBufferFactory bufferFactory);
+  }
+}
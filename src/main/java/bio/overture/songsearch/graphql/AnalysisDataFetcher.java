@@ -19,6 +19,7 @@
 package bio.overture.songsearch.graphql;
 
 import static bio.overture.songsearch.utils.JacksonUtils.convertValue;
+import static bio.overture.songsearch.utils.SelectionSetUtils.selectionToSourceIncludes;
 import static java.util.stream.Collectors.toUnmodifiableList;
 
 import bio.overture.songsearch.model.*;
@@ -28,6 +29,7 @@ import com.google.common.collect.ImmutableMap;
 import graphql.schema.DataFetcher;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -45,7 +47,7 @@ public class AnalysisDataFetcher {
   }
 
   @SuppressWarnings("unchecked")
-  public DataFetcher<SearchResult<Analysis>> getAnalysesDataFetcher() {
+  public DataFetcher<CompletableFuture<SearchResult<Analysis>>> getAnalysesDataFetcher() {
     return environment -> {
       val args = environment.getArguments();
 
@@ -64,28 +66,62 @@ public class AnalysisDataFetcher {
                   .collect(toUnmodifiableList()));
         }
       }
-      return analysisService.searchAnalyses(filter.build(), page.build(), sorts.build());
+      val after = args == null ? null : (String) args.get("after");
+      val sourceIncludes = selectionToSourceIncludes(environment.getSelectionSet(), "content");
+      return analysisService.searchAnalyses(
+          filter.build(), page.build(), sorts.build(), sourceIncludes, after);
     };
   }
 
   @SuppressWarnings("unchecked")
-  public DataFetcher<AggregationResult> getAggregateAnalysesDataFetcher() {
+  public DataFetcher<CompletableFuture<AggregationResult>> getAggregateAnalysesDataFetcher() {
     return environment -> {
       val args = environment.getArguments();
 
       val filter = ImmutableMap.<String, Object>builder();
+      val facets = ImmutableList.<Facet>builder();
 
       if (args != null) {
         if (args.get("filter") != null) filter.putAll((Map<String, Object>) args.get("filter"));
+        if (args.get("facets") != null) {
+          val rawFacets = (List<Object>) args.get("facets");
+          facets.addAll(
+              rawFacets.stream()
+                  .map(facet -> convertValue(facet, Facet.class))
+                  .collect(toUnmodifiableList()));
+        }
       }
-      return analysisService.aggregateAnalyses(filter.build());
+      return analysisService.aggregateAnalyses(filter.build(), facets.build());
     };
   }
 
-  public DataFetcher<List<SampleMatchedAnalysisPair>> getSampleMatchedAnalysisPairsFetcher() {
+  public DataFetcher<CompletableFuture<List<SampleMatchedAnalysisPair>>>
+      getSampleMatchedAnalysisPairsFetcher() {
     return env -> {
-      val analysisId = env.getArguments().get("analysisId").toString();
+      val analysisIds = env.<List<String>>getArgument("analysisIds");
+      if (analysisIds != null) {
+        return analysisService.getSampleMatchedAnalysisPairs(analysisIds);
+      }
+      val analysisId = env.<String>getArgument("analysisId");
+      if (analysisId == null) {
+        throw new IllegalArgumentException("Either analysisId or analysisIds is required");
+      }
       return analysisService.getSampleMatchedAnalysisPairs(analysisId);
     };
   }
+
+  @SuppressWarnings("unchecked")
+  public DataFetcher<CompletableFuture<SearchResult<SampleMatchedAnalysisPair>>>
+      getStudySampleMatchedAnalysisPairsFetcher() {
+    return env -> {
+      val args = env.getArguments();
+      val page = ImmutableMap.<String, Integer>builder();
+      if (args.get("page") != null) page.putAll((Map<String, Integer>) args.get("page"));
+      return analysisService.getStudySampleMatchedAnalysisPairs(
+          env.getArgument("studyId"),
+          env.getArgument("analysisType"),
+          env.getArgument("experimentalStrategy"),
+          page.build());
+    };
+  }
 }
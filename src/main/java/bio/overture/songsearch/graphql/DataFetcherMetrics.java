@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.graphql;
+
+import bio.overture.songsearch.utils.QueryOrigin;
+import graphql.schema.DataFetcher;
+import graphql.schema.DataFetchingEnvironment;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.CompletionStage;
+import lombok.NonNull;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times data fetchers until the value they return is resolved, so an asynchronous fetcher is
+ * measured up to its searches completing and their hits being mapped, not just until it returns a
+ * future. Next to the Elasticsearch request metrics this tells cluster time from mapping time.
+ *
+ * <p>The searches a fetcher sends are labelled with its operation and field, see {@link
+ * QueryOrigin}.
+ */
+@Component
+public class DataFetcherMetrics {
+  private final MeterRegistry meterRegistry;
+
+  @Autowired
+  public DataFetcherMetrics(@NonNull MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /** @param operation field the fetcher resolves, prefixed with its type when not on Query */
+  public <T> DataFetcher<T> timed(@NonNull String operation, @NonNull DataFetcher<T> dataFetcher) {
+    return environment -> {
+      val sample = Timer.start(meterRegistry);
+      final T value;
+      try {
+        value =
+            QueryOrigin.callAs(origin(environment, operation), () -> dataFetcher.get(environment));
+      } catch (Exception e) {
+        stop(sample, operation, e);
+        throw e;
+      }
+      if (value instanceof CompletionStage) {
+        ((CompletionStage<?>) value).whenComplete((result, e) -> stop(sample, operation, e));
+      } else {
+        stop(sample, operation, null);
+      }
+      return value;
+    };
+  }
+
+  private static String origin(DataFetchingEnvironment environment, String operation) {
+    val operationDefinition = environment.getOperationDefinition();
+    val operationName =
+        operationDefinition == null || operationDefinition.getName() == null
+            ? "anonymous"
+            : operationDefinition.getName();
+    return operationName + "/" + operation;
+  }
+
+  private void stop(Timer.Sample sample, String operation, Throwable error) {
+    sample.stop(
+        Timer.builder("songsearch.graphql.fetch")
+            .description("Time to resolve a field, including the searches behind it")
+            .tag("operation", operation)
+            .tag("outcome", error == null ? "success" : "failure")
+            .publishPercentileHistogram()
+            .register(meterRegistry));
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.graphql;
+
+import bio.overture.songsearch.utils.RequestCancellation;
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.spring.web.reactive.GraphQLInvocation;
+import graphql.spring.web.reactive.GraphQLInvocationData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+// See original code:
+// https://github.com/graphql-java/graphql-java-spring/blob/v1.0/graphql-java-spring-webflux/src/main/java/graphql/spring/web/reactive/components/DefaultGraphQLInvocation.java
+// The default invocation can only be given a singleton DataLoaderRegistry, which would share
+// DataLoader caches across requests. This invocation creates a new registry for every request.
+// The secure profile does the same in SecurityContextAddedInvocation.
+
+@Component
+@Primary
+@Profile("!secure")
+public class DataLoaderRegistryAddedInvocation implements GraphQLInvocation {
+
+  @Autowired GraphQL graphQL;
+
+  @Autowired DataLoaderRegistryFactory dataLoaderRegistryFactory;
+
+  @Override
+  public Mono<ExecutionResult> invoke(
+      GraphQLInvocationData invocationData, ServerWebExchange serverWebExchange) {
+    RequestCancellation cancellation = new RequestCancellation();
+    ExecutionInput executionInput =
+        ExecutionInput.newExecutionInput()
+            .query(invocationData.getQuery())
+            .operationName(invocationData.getOperationName())
+            .variables(invocationData.getVariables())
+            .dataLoaderRegistry(dataLoaderRegistryFactory.newDataLoaderRegistry(cancellation))
+            .context(
+                new RequestContext(serverWebExchange.getRequest().getHeaders(), null, cancellation))
+            .build();
+    // cancelled when the client disconnects, the searches still in flight are cancelled with it
+    return Mono.fromCompletionStage(graphQL.executeAsync(executionInput))
+        .doOnCancel(cancellation::cancel);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.graphql;
+
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.stream.Collectors.*;
+
+import bio.overture.songsearch.model.Analysis;
+import bio.overture.songsearch.service.AnalysisService;
+import bio.overture.songsearch.utils.RequestCancellation;
+import com.google.common.collect.ImmutableMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.Value;
+import lombok.val;
+import org.dataloader.BatchLoader;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the DataLoaders used to batch nested entity lookups. A new registry has to be created
+ * for every request since DataLoaders cache the values they load.
+ */
+@Component
+public class DataLoaderRegistryFactory {
+  public static final String PRODUCED_ANALYSES_LOADER = "producedAnalyses";
+  public static final String INPUT_ANALYSIS_LOADER = "inputAnalysis";
+
+  private final AnalysisService analysisService;
+  private final OperationBudgets operationBudgets;
+
+  @Autowired
+  public DataLoaderRegistryFactory(
+      AnalysisService analysisService, OperationBudgets operationBudgets) {
+    this.analysisService = analysisService;
+    this.operationBudgets = operationBudgets;
+  }
+
+  /** @param cancellation of the request, the batches are sent for it */
+  public DataLoaderRegistry newDataLoaderRegistry(RequestCancellation cancellation) {
+    return new DataLoaderRegistry()
+        .register(
+            PRODUCED_ANALYSES_LOADER,
+            DataLoader.newDataLoader(producedAnalysesBatchLoader(cancellation)))
+        .register(
+            INPUT_ANALYSIS_LOADER,
+            DataLoader.newDataLoader(inputAnalysisBatchLoader(cancellation)));
+  }
+
+  private BatchLoader<FilteredKey, List<Analysis>> producedAnalysesBatchLoader(
+      RequestCancellation cancellation) {
+    return keys ->
+        budgeted(
+            "Run.producedAnalyses",
+            cancellation,
+            () -> loadGroupedByFilter(keys, analysisService::getAnalysesByRunIds, List.of()));
+  }
+
+  private BatchLoader<FilteredKey, Analysis> inputAnalysisBatchLoader(
+      RequestCancellation cancellation) {
+    return keys ->
+        budgeted(
+            "Run.inputAnalyses",
+            cancellation,
+            () -> loadGroupedByFilter(keys, analysisService::getAnalysesByIds, null));
+  }
+
+  // batches are sent when the registry dispatches them, not from inside a data fetcher
+  @SneakyThrows
+  private <V> CompletableFuture<List<V>> budgeted(
+      String operation,
+      RequestCancellation cancellation,
+      Callable<CompletableFuture<List<V>>> batch) {
+    return operationBudgets.callIn(operation, cancellation, batch);
+  }
+
+  /**
+   * Keys sharing the same filter are loaded together with one lookup, the results are then put
+   * back in the order of the keys
+   */
+  private static <V> CompletableFuture<List<V>> loadGroupedByFilter(
+      List<FilteredKey> keys,
+      BiFunction<Map<String, Object>, Set<String>, CompletableFuture<Map<String, V>>> loader,
+      V missingValue) {
+    val idsByFilter =
+        keys.stream()
+            .collect(groupingBy(FilteredKey::getFilter, mapping(FilteredKey::getId, toSet())));
+
+    val resultsByFilter =
+        idsByFilter.entrySet().stream()
+            .collect(toMap(Map.Entry::getKey, e -> loader.apply(e.getKey(), e.getValue())));
+
+    return allOf(resultsByFilter.values().toArray(CompletableFuture[]::new))
+        .thenApply(
+            ignored ->
+                keys.stream()
+                    .map(
+                        key ->
+                            resultsByFilter
+                                .get(key.getFilter())
+                                .join()
+                                .getOrDefault(key.getId(), missingValue))
+                    .collect(toList()));
+  }
+
+  /** DataLoader key of an id along with the rest of the filter the id is looked up with */
+  @Value
+  public static class FilteredKey {
+    @NonNull String id;
+    @NonNull ImmutableMap<String, Object> filter;
+  }
+}
@@ -20,11 +20,17 @@ package bio.overture.songsearch.graphql;
 
 import static bio.overture.songsearch.config.constants.SearchFields.ANALYSIS_ID;
 import static bio.overture.songsearch.config.constants.SearchFields.RUN_ID;
+import static bio.overture.songsearch.graphql.DataLoaderRegistryFactory.INPUT_ANALYSIS_LOADER;
+import static bio.overture.songsearch.graphql.DataLoaderRegistryFactory.PRODUCED_ANALYSES_LOADER;
 import static bio.overture.songsearch.utils.CommonUtils.asImmutableMap;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.collect.ImmutableMap.toImmutableMap;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toUnmodifiableSet;
 
 import bio.overture.songsearch.config.SongSearchProperties;
+import bio.overture.songsearch.graphql.DataLoaderRegistryFactory.FilteredKey;
 import bio.overture.songsearch.model.Analysis;
 import bio.overture.songsearch.model.Run;
 import bio.overture.songsearch.service.AnalysisService;
@@ -33,12 +39,14 @@ import com.apollographql.federation.graphqljava._Entity;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import graphql.schema.DataFetcher;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
+import org.dataloader.DataLoader;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -52,92 +60,130 @@ public class EntityDataFetcher {
   private final AnalysisService analysisService;
   private final FileService fileService;
   private final SongSearchProperties songSearchProperties;
+  private final DataFetcherMetrics dataFetcherMetrics;
 
   @Autowired
   public EntityDataFetcher(
       AnalysisService analysisService,
       FileService fileService,
-      SongSearchProperties songSearchProperties) {
+      SongSearchProperties songSearchProperties,
+      DataFetcherMetrics dataFetcherMetrics) {
     this.analysisService = analysisService;
     this.fileService = fileService;
     this.songSearchProperties = songSearchProperties;
+    this.dataFetcherMetrics = dataFetcherMetrics;
   }
 
   public DataFetcher getDataFetcher() {
-    return environment ->
-        environment.<List<Map<String, Object>>>getArgument(_Entity.argumentName).stream()
-            .map(
-                values -> {
-                  if (ANALYSIS_ENTITY.equals(values.get("__typename"))) {
-                    final Object analysisId = values.get("analysisId");
-                    if (analysisId instanceof String) {
-                      return analysisService.getAnalysisById((String) analysisId);
-                    }
-                  }
-                  if (FILE_ENTITY.equals(values.get("__typename"))) {
-                    final Object fileObjectId = values.get("objectId");
-                    if (fileObjectId instanceof String) {
-                      return fileService.getFileByObjectId((String) fileObjectId);
-                    }
-                  }
-                  if (RUN_ENTITY.equals(values.get("__typename"))) {
-                    final Object runId = values.get("runId");
-                    val ids = getRelevantAnalysisIdsFromRunParameters(values.get("parameters"));
-
-                    if (runId instanceof String) {
-                      return new Run(
-                          (String) runId,
-                          producedAnalysesResolver((String) runId),
-                          inputAnalysesResolver(ids));
-                    }
-                  }
-                  return null;
-                })
-            .collect(toList());
+    return environment -> {
+      final List<Map<String, Object>> representations =
+          environment.getArgument(_Entity.argumentName);
+
+      // resolve all keys of the same type in one search instead of one search per representation
+      val analysesFuture =
+          analysisService.getAnalysesByIds(
+              getEntityKeys(representations, ANALYSIS_ENTITY, "analysisId"));
+      val filesFuture =
+          fileService.getFilesByObjectIds(getEntityKeys(representations, FILE_ENTITY, "objectId"));
+
+      return analysesFuture.thenCombine(
+          filesFuture,
+          (analyses, files) ->
+              representations.stream()
+                  .map(
+                      values -> {
+                        if (ANALYSIS_ENTITY.equals(values.get("__typename"))) {
+                          final Object analysisId = values.get("analysisId");
+                          if (analysisId instanceof String) {
+                            return analyses.get(analysisId);
+                          }
+                        }
+                        if (FILE_ENTITY.equals(values.get("__typename"))) {
+                          final Object fileObjectId = values.get("objectId");
+                          if (fileObjectId instanceof String) {
+                            return files.get(fileObjectId);
+                          }
+                        }
+                        if (RUN_ENTITY.equals(values.get("__typename"))) {
+                          final Object runId = values.get("runId");
+                          val ids =
+                              getRelevantAnalysisIdsFromRunParameters(values.get("parameters"));
+
+                          if (runId instanceof String) {
+                            return new Run(
+                                (String) runId,
+                                dataFetcherMetrics.timed(
+                                    "Run.producedAnalyses",
+                                    producedAnalysesResolver((String) runId)),
+                                dataFetcherMetrics.timed(
+                                    "Run.inputAnalyses", inputAnalysesResolver(ids)));
+                          }
+                        }
+                        return null;
+                      })
+                  .collect(toList()));
+    };
+  }
+
+  private static Set<String> getEntityKeys(
+      List<Map<String, Object>> representations, String typename, String keyField) {
+    return representations.stream()
+        .filter(values -> typename.equals(values.get("__typename")))
+        .map(values -> values.get(keyField))
+        .filter(key -> key instanceof String)
+        .map(key -> (String) key)
+        .collect(toUnmodifiableSet());
   }
 
-  private DataFetcher<List<Analysis>> inputAnalysesResolver(List<String> inputAnalysisIds) {
+  private DataFetcher<CompletableFuture<List<Analysis>>> inputAnalysesResolver(
+      List<String> inputAnalysisIds) {
     return environment -> {
       ImmutableMap<String, Object> filter = asImmutableMap(environment.getArgument("filter"));
       val filerAnalysisId = filter.get(ANALYSIS_ID);
 
-      val multipleMergedFilters =
+      // analysisId is what gets batched, the rest of the filter is shared by the batched lookup
+      val sharedFilter = withoutKey(filter, ANALYSIS_ID);
+      val keys =
           inputAnalysisIds.stream()
-              .map(
-                  id -> {
-                    Map<String, Object> map = new HashMap<>(filter);
-                    map.put(ANALYSIS_ID, id);
-                    return map;
-                  })
-              .filter(f -> filerAnalysisId == null || f.get(ANALYSIS_ID).equals(filerAnalysisId))
+              .filter(id -> filerAnalysisId == null || id.equals(filerAnalysisId))
+              .map(id -> new FilteredKey(id, sharedFilter))
               .collect(toList());
 
       // short circuit here, otherwise will get all analysis
-      if (multipleMergedFilters.size() < 1) {
-        return List.of();
+      if (keys.size() < 1) {
+        return completedFuture(List.of());
       }
 
-      return analysisService.getAnalyses(multipleMergedFilters);
+      final DataLoader<FilteredKey, Analysis> loader =
+          environment.getDataLoader(INPUT_ANALYSIS_LOADER);
+      return loader
+          .loadMany(keys)
+          .thenApply(analyses -> analyses.stream().filter(Objects::nonNull).collect(toList()));
     };
   }
 
-  private DataFetcher<List<Analysis>> producedAnalysesResolver(String runId) {
+  private DataFetcher<CompletableFuture<List<Analysis>>> producedAnalysesResolver(String runId) {
     return environment -> {
       ImmutableMap<String, Object> filter = asImmutableMap(environment.getArgument("filter"));
       val filterRunId = filter.getOrDefault(RUN_ID, runId);
 
       // short circuit here since can't find produced analysis for invalid runId
       if (isNullOrEmpty(runId) || !runId.equals(filterRunId)) {
-        return List.of();
+        return completedFuture(List.of());
       }
 
-      Map<String, Object> mergedFilter = new HashMap<>(filter);
-      mergedFilter.put(RUN_ID, runId);
-
-      return analysisService.getAnalyses(mergedFilter, null);
+      final DataLoader<FilteredKey, List<Analysis>> loader =
+          environment.getDataLoader(PRODUCED_ANALYSES_LOADER);
+      return loader.load(new FilteredKey(runId, withoutKey(filter, RUN_ID)));
     };
   }
 
+  private static ImmutableMap<String, Object> withoutKey(Map<String, Object> map, String key) {
+    return map.entrySet().stream()
+        .filter(e -> !e.getKey().equals(key))
+        .collect(toImmutableMap(Map.Entry::getKey, Map.Entry::getValue));
+  }
+
   private List<String> getRelevantAnalysisIdsFromRunParameters(Object parametersObj) {
     ImmutableMap<String, Object> parameters = asImmutableMap(parametersObj);
 
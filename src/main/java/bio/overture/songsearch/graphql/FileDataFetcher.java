@@ -19,9 +19,11 @@
 package bio.overture.songsearch.graphql;
 
 import static bio.overture.songsearch.utils.JacksonUtils.convertValue;
+import static bio.overture.songsearch.utils.SelectionSetUtils.selectionToSourceIncludes;
 import static java.util.stream.Collectors.toUnmodifiableList;
 
 import bio.overture.songsearch.model.AggregationResult;
+import bio.overture.songsearch.model.Facet;
 import bio.overture.songsearch.model.File;
 import bio.overture.songsearch.model.SearchResult;
 import bio.overture.songsearch.model.Sort;
@@ -31,6 +33,7 @@ import com.google.common.collect.ImmutableMap;
 import graphql.schema.DataFetcher;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -47,7 +50,7 @@ public class FileDataFetcher {
   }
 
   @SuppressWarnings("unchecked")
-  public DataFetcher<SearchResult<File>> getFilesDataFetcher() {
+  public DataFetcher<CompletableFuture<SearchResult<File>>> getFilesDataFetcher() {
     return environment -> {
       val args = environment.getArguments();
 
@@ -66,21 +69,32 @@ public class FileDataFetcher {
                   .collect(toUnmodifiableList()));
         }
       }
-      return fileService.searchFiles(filter.build(), page.build(), sorts.build());
+      val after = args == null ? null : (String) args.get("after");
+      val sourceIncludes = selectionToSourceIncludes(environment.getSelectionSet(), "content");
+      return fileService.searchFiles(
+          filter.build(), page.build(), sorts.build(), sourceIncludes, after);
     };
   }
 
   @SuppressWarnings("unchecked")
-  public DataFetcher<AggregationResult> getAggregateFilesDataFetcher() {
+  public DataFetcher<CompletableFuture<AggregationResult>> getAggregateFilesDataFetcher() {
     return environment -> {
       val args = environment.getArguments();
 
       val filter = ImmutableMap.<String, Object>builder();
+      val facets = ImmutableList.<Facet>builder();
 
       if (args != null) {
         if (args.get("filter") != null) filter.putAll((Map<String, Object>) args.get("filter"));
+        if (args.get("facets") != null) {
+          val rawFacets = (List<Object>) args.get("facets");
+          facets.addAll(
+              rawFacets.stream()
+                  .map(facet -> convertValue(facet, Facet.class))
+                  .collect(toUnmodifiableList()));
+        }
       }
-      return fileService.aggregateFiles(filter.build());
+      return fileService.aggregateFiles(filter.build(), facets.build());
     };
   }
 }
@@ -26,6 +26,7 @@ import bio.overture.songsearch.model.Analysis;
 import bio.overture.songsearch.model.File;
 import bio.overture.songsearch.model.Run;
 import com.apollographql.federation.graphqljava.Federation;
+import com.apollographql.federation.graphqljava.tracing.FederatedTracingInstrumentation;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -33,6 +34,7 @@ import com.google.common.io.Resources;
 import graphql.GraphQL;
 import graphql.execution.AsyncExecutionStrategy;
 import graphql.scalars.ExtendedScalars;
+import graphql.schema.DataFetcher;
 import graphql.schema.GraphQLSchema;
 import graphql.schema.idl.RuntimeWiring;
 import java.io.IOException;
@@ -51,6 +53,8 @@ public class GraphQLProvider {
   private final AnalysisDataFetcher analysisDataFetcher;
   private final FileDataFetcher fileDataFetcher;
   private final EntityDataFetcher entityDataFetcher;
+  private final DataFetcherMetrics dataFetcherMetrics;
+  private final OperationBudgets operationBudgets;
   private final AuthProperties authProperties;
   private GraphQL graphQL;
   private GraphQLSchema graphQLSchema;
@@ -60,10 +64,14 @@ public class GraphQLProvider {
       AnalysisDataFetcher analysisDataFetcher,
       FileDataFetcher fileDataFetcher,
       EntityDataFetcher entityDataFetcher,
+      DataFetcherMetrics dataFetcherMetrics,
+      OperationBudgets operationBudgets,
       AuthProperties authProperties) {
     this.analysisDataFetcher = analysisDataFetcher;
     this.fileDataFetcher = fileDataFetcher;
     this.entityDataFetcher = entityDataFetcher;
+    this.dataFetcherMetrics = dataFetcherMetrics;
+    this.operationBudgets = operationBudgets;
     this.authProperties = authProperties;
   }
 
@@ -92,12 +100,16 @@ public class GraphQLProvider {
     URL url = Resources.getResource("schema.graphql");
     String sdl = Resources.toString(url, Charsets.UTF_8);
     graphQLSchema = buildSchema(sdl);
-    this.graphQL = GraphQL.newGraphQL(graphQLSchema).build();
+    // per field timings in the ftv1 extension, only for requests where the gateway asks for them
+    this.graphQL =
+        GraphQL.newGraphQL(graphQLSchema)
+            .instrumentation(new FederatedTracingInstrumentation())
+            .build();
   }
 
   private GraphQLSchema buildSchema(String sdl) {
     return Federation.transform(sdl, buildWiring())
-        .fetchEntities(entityDataFetcher.getDataFetcher())
+        .fetchEntities(timed("_entities", entityDataFetcher.getDataFetcher()))
         .resolveEntityType(
             typeResolutionEnvironment -> {
               final Object src = typeResolutionEnvironment.getObject();
@@ -126,23 +138,45 @@ public class GraphQLProvider {
         .scalar(ExtendedScalars.Json)
         .type(
             newTypeWiring("Query")
-                .dataFetcher("analyses", analysisDataFetcher.getAnalysesDataFetcher()))
+                .dataFetcher(
+                    "analyses", timed("analyses", analysisDataFetcher.getAnalysesDataFetcher())))
         .type(
             newTypeWiring("Query")
                 .dataFetcher(
-                    "aggregateAnalyses", analysisDataFetcher.getAggregateAnalysesDataFetcher()))
-        .type(newTypeWiring("Query").dataFetcher("files", fileDataFetcher.getFilesDataFetcher()))
+                    "aggregateAnalyses",
+                    timed(
+                        "aggregateAnalyses",
+                        analysisDataFetcher.getAggregateAnalysesDataFetcher())))
         .type(
             newTypeWiring("Query")
-                .dataFetcher("aggregateFiles", fileDataFetcher.getAggregateFilesDataFetcher()))
+                .dataFetcher("files", timed("files", fileDataFetcher.getFilesDataFetcher())))
+        .type(
+            newTypeWiring("Query")
+                .dataFetcher(
+                    "aggregateFiles",
+                    timed("aggregateFiles", fileDataFetcher.getAggregateFilesDataFetcher())))
         .type(
             newTypeWiring("Query")
                 .dataFetcher(
                     "sampleMatchedAnalysisPairs",
-                    analysisDataFetcher.getSampleMatchedAnalysisPairsFetcher()))
+                    timed(
+                        "sampleMatchedAnalysisPairs",
+                        analysisDataFetcher.getSampleMatchedAnalysisPairsFetcher())))
+        .type(
+            newTypeWiring("Query")
+                .dataFetcher(
+                    "studySampleMatchedAnalysisPairs",
+                    timed(
+                        "studySampleMatchedAnalysisPairs",
+                        analysisDataFetcher.getStudySampleMatchedAnalysisPairsFetcher())))
         .build();
   }
 
+  // timed, and its searches bound to the operation's budget
+  private <T> DataFetcher<T> timed(String operation, DataFetcher<T> dataFetcher) {
+    return dataFetcherMetrics.timed(operation, operationBudgets.budgeted(operation, dataFetcher));
+  }
+
   private ImmutableList<String> queryScopesToCheck() {
     return ImmutableList.copyOf(
         Iterables.concat(
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.graphql;
+
+import bio.overture.songsearch.config.SongSearchProperties;
+import bio.overture.songsearch.config.SongSearchProperties.SearchBudget;
+import bio.overture.songsearch.utils.RequestCancellation;
+import bio.overture.songsearch.utils.SearchScope;
+import graphql.schema.DataFetcher;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import lombok.NonNull;
+import lombok.val;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Binds the searches of each operation to its time budget and to the request, see {@link
+ * SearchScope}. The budget starts when the data fetcher or the data loader batch does.
+ */
+@Component
+public class OperationBudgets {
+  private final SearchBudget defaults;
+  private final Map<String, SearchBudget> operations;
+
+  @Autowired
+  public OperationBudgets(@NonNull SongSearchProperties properties) {
+    val searchBudgets = properties.getSearchBudgets();
+    this.defaults = searchBudgets.getDefaults();
+    this.operations =
+        searchBudgets.getOperations() == null ? Map.of() : searchBudgets.getOperations();
+  }
+
+  /** @param operation field the fetcher resolves, prefixed with its type when not on Query */
+  public <T> DataFetcher<T> budgeted(
+      @NonNull String operation, @NonNull DataFetcher<T> dataFetcher) {
+    return environment -> {
+      final RequestContext context = environment.getContext();
+      val cancellation = context == null ? null : context.getCancellation();
+      return callIn(operation, cancellation, () -> dataFetcher.get(environment));
+    };
+  }
+
+  public <T> T callIn(String operation, RequestCancellation cancellation, Callable<T> callable)
+      throws Exception {
+    val budget = operations.getOrDefault(operation, defaults);
+    val scope =
+        new SearchScope(
+            System.nanoTime() + budget.getTimeout().toNanos(),
+            Boolean.TRUE.equals(budget.getAllowPartialResults()),
+            cancellation);
+    return SearchScope.callIn(scope, callable);
+  }
+}
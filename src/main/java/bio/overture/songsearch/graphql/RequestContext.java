@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.graphql;
+
+import bio.overture.songsearch.utils.RequestCancellation;
+import com.apollographql.federation.graphqljava.tracing.HTTPRequestHeaders;
+import lombok.NonNull;
+import lombok.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.context.SecurityContext;
+
+/**
+ * Context of a GraphQL execution. The request headers tell the federated tracing instrumentation
+ * whether the gateway asked for a trace, the security context carries the caller's scopes (only
+ * with the secure profile), and the cancellation cancels the request's searches when the client
+ * goes away.
+ */
+@Value
+public class RequestContext implements HTTPRequestHeaders {
+  @NonNull HttpHeaders headers;
+  SecurityContext securityContext;
+  @NonNull RequestCancellation cancellation;
+
+  @Override
+  public String getHTTPRequestHeader(String caseInsensitiveHeaderName) {
+    return headers.getFirst(caseInsensitiveHeaderName);
+  }
+}
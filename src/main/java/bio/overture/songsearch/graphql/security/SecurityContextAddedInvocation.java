@@ -18,6 +18,9 @@
 
 package bio.overture.songsearch.graphql.security;
 
+import bio.overture.songsearch.graphql.DataLoaderRegistryFactory;
+import bio.overture.songsearch.graphql.RequestContext;
+import bio.overture.songsearch.utils.RequestCancellation;
 import graphql.ExecutionInput;
 import graphql.ExecutionResult;
 import graphql.GraphQL;
@@ -28,6 +31,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
 import org.springframework.security.core.context.ReactiveSecurityContextHolder;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.stereotype.Component;
@@ -52,30 +56,49 @@ public class SecurityContextAddedInvocation implements GraphQLInvocation {
 
   @Autowired GraphQL graphQL;
 
+  @Autowired DataLoaderRegistryFactory dataLoaderRegistryFactory;
+
   @Override
   public Mono<ExecutionResult> invoke(
       GraphQLInvocationData invocationData, ServerWebExchange serverWebExchange) {
+    RequestCancellation cancellation = new RequestCancellation();
     ExecutionInput.Builder executionInputBuilder =
         ExecutionInput.newExecutionInput()
             .query(invocationData.getQuery())
             .operationName(invocationData.getOperationName())
-            .variables(invocationData.getVariables());
+            .variables(invocationData.getVariables())
+            .dataLoaderRegistry(dataLoaderRegistryFactory.newDataLoaderRegistry(cancellation));
 
     Mono<ExecutionInput> customizedExecutionInputMono =
-        addReactiveSecurityContextToExecutionInput(executionInputBuilder);
-    return customizedExecutionInputMono.flatMap(
-        customizedExecutionInput ->
-            Mono.fromCompletionStage(graphQL.executeAsync(customizedExecutionInput)));
+        addReactiveSecurityContextToExecutionInput(
+            executionInputBuilder, serverWebExchange.getRequest().getHeaders(), cancellation);
+    // cancelled when the client disconnects, the searches still in flight are cancelled with it
+    return customizedExecutionInputMono
+        .flatMap(
+            customizedExecutionInput ->
+                Mono.fromCompletionStage(graphQL.executeAsync(customizedExecutionInput)))
+        .doOnCancel(cancellation::cancel);
   }
 
   @SneakyThrows
   public Mono<ExecutionInput> addReactiveSecurityContextToExecutionInput(
-      ExecutionInput.Builder executionInputBuilder) {
+      ExecutionInput.Builder executionInputBuilder,
+      HttpHeaders headers,
+      RequestCancellation cancellation) {
     log.debug("Adding Reactive Security Context To Execution Input");
     Mono<SecurityContext> securityContextMono = ReactiveSecurityContextHolder.getContext();
 
     return securityContextMono
-        .map(securityContext -> executionInputBuilder.context(securityContext).build())
-        .switchIfEmpty(Mono.just(executionInputBuilder.build()));
+        .map(
+            securityContext ->
+                executionInputBuilder
+                    .context(new RequestContext(headers, securityContext, cancellation))
+                    .build())
+        .switchIfEmpty(
+            Mono.fromSupplier(
+                () ->
+                    executionInputBuilder
+                        .context(new RequestContext(headers, null, cancellation))
+                        .build()));
   }
 }
@@ -18,10 +18,11 @@
 
 package bio.overture.songsearch.graphql.security;
 
+import bio.overture.songsearch.graphql.RequestContext;
 import com.google.common.collect.ImmutableList;
 import graphql.*;
+import graphql.execution.AsyncExecutionStrategy;
 import graphql.execution.ExecutionContext;
-import graphql.execution.ExecutionStrategy;
 import graphql.execution.ExecutionStrategyParameters;
 import graphql.language.Field;
 import graphql.language.Node;
@@ -34,14 +35,17 @@ import lombok.val;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContext;
 
+// Extends AsyncExecutionStrategy so that DataLoaderDispatcherInstrumentation still dispatches the
+// DataLoaders once per level of the query; for any other query strategy it dispatches per field,
+// which costs one search per Run for the batched fields.
 @Slf4j
-public class VerifyAuthQueryExecutionStrategyDecorator extends ExecutionStrategy {
+public class VerifyAuthQueryExecutionStrategyDecorator extends AsyncExecutionStrategy {
 
   private final List<String> acceptedQueryAuthScopes;
-  private final ExecutionStrategy decoratedStrategy;
+  private final AsyncExecutionStrategy decoratedStrategy;
 
   public VerifyAuthQueryExecutionStrategyDecorator(
-      ExecutionStrategy decoratedStrategy, List<String> acceptedQueryAuthScopes) {
+      AsyncExecutionStrategy decoratedStrategy, List<String> acceptedQueryAuthScopes) {
     this.decoratedStrategy = decoratedStrategy;
     this.acceptedQueryAuthScopes = acceptedQueryAuthScopes;
   }
@@ -50,6 +54,11 @@ public class VerifyAuthQueryExecutionStrategyDecorator extends ExecutionStrategy
   @SneakyThrows
   public CompletableFuture<ExecutionResult> execute(
       ExecutionContext executionContext, ExecutionStrategyParameters executionStrategyParameters) {
+    if (!executionStrategyParameters.getPath().isRootPath()) {
+      // the query strategy also executes every nested object, the scopes were checked at the root
+      return decoratedStrategy.execute(executionContext, executionStrategyParameters);
+    }
+
     if (isApolloFederationServiceCapabilityQuery(executionContext)) {
       // the apollo federation requests are queries but they don't need to be authorized so no need
       // to check
@@ -71,6 +80,9 @@ public class VerifyAuthQueryExecutionStrategyDecorator extends ExecutionStrategy
 
   private ImmutableList<GrantedAuthority> getGrantedAuthoritiesFromContext(Object context) {
     val scopesBuilder = ImmutableList.<GrantedAuthority>builder();
+    if (context instanceof RequestContext) {
+      context = ((RequestContext) context).getSecurityContext();
+    }
     if (context instanceof SecurityContext) {
       try {
         SecurityContext securityContext = (SecurityContext) context;
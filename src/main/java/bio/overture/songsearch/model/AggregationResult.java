@@ -1,8 +1,10 @@
 package bio.overture.songsearch.model;
 
+import java.util.List;
 import lombok.Value;
 
 @Value
 public class AggregationResult {
   Long totalHits;
+  List<FacetResult> facets;
 }
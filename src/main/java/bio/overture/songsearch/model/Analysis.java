@@ -21,8 +21,10 @@ package bio.overture.songsearch.model;
 import bio.overture.songsearch.model.enums.AnalysisState;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.annotation.JsonNaming;
+import com.fasterxml.jackson.module.afterburner.AfterburnerModule;
 import java.util.List;
 import java.util.Map;
 import lombok.Data;
@@ -33,7 +35,9 @@ import lombok.SneakyThrows;
 @JsonIgnoreProperties(ignoreUnknown = true)
 @JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
 public class Analysis {
-  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final ObjectMapper MAPPER =
+      new ObjectMapper().registerModule(new AfterburnerModule());
+  private static final ObjectReader READER = MAPPER.readerFor(Analysis.class);
 
   private String analysisId;
 
@@ -66,6 +70,15 @@ public class Analysis {
     return MAPPER.convertValue(sourceMap, Analysis.class);
   }
 
+  /**
+   * Reads a analysis straight from the json bytes of a document source, without building the
+   * intermediate map of {@link #parse(Map)}
+   */
+  @SneakyThrows
+  public static Analysis parse(@NonNull byte[] source, int offset, int length) {
+    return READER.readValue(source, offset, length);
+  }
+
   @Data
   @JsonIgnoreProperties(ignoreUnknown = true)
   @JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
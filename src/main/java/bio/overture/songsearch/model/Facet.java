@@ -0,0 +1,11 @@
+package bio.overture.songsearch.model;
+
+import lombok.Data;
+
+@Data
+public class Facet {
+  String fieldName;
+  String type;
+  Integer size;
+  String interval;
+}
@@ -0,0 +1,18 @@
+package bio.overture.songsearch.model;
+
+import java.util.List;
+import lombok.Value;
+
+@Value
+public class FacetResult {
+  String fieldName;
+  String type;
+  Long value;
+  List<Bucket> buckets;
+
+  @Value
+  public static class Bucket {
+    String key;
+    Long docCount;
+  }
+}
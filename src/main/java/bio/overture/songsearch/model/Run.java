@@ -26,6 +26,7 @@ import graphql.schema.DataFetcher;
 import graphql.schema.DataFetchingEnvironment;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NonNull;
@@ -40,9 +41,9 @@ public class Run {
 
   private String runId;
 
-  private DataFetcher<List<Analysis>> producedAnalysesFetcher;
+  private DataFetcher<CompletableFuture<List<Analysis>>> producedAnalysesFetcher;
 
-  private DataFetcher<List<Analysis>> inputAnalysesFetcher;
+  private DataFetcher<CompletableFuture<List<Analysis>>> inputAnalysesFetcher;
 
   @SneakyThrows
   public static Run parse(@NonNull Map<String, Object> sourceMap) {
@@ -50,12 +51,12 @@ public class Run {
   }
 
   @SneakyThrows
-  public List<Analysis> getInputAnalyses(DataFetchingEnvironment env) {
+  public CompletableFuture<List<Analysis>> getInputAnalyses(DataFetchingEnvironment env) {
     return inputAnalysesFetcher.get(env);
   }
 
   @SneakyThrows
-  public List<Analysis> getProducedAnalyses(DataFetchingEnvironment env) {
+  public CompletableFuture<List<Analysis>> getProducedAnalyses(DataFetchingEnvironment env) {
     return producedAnalysesFetcher.get(env);
   }
 }
@@ -9,8 +9,12 @@ public class SearchResult<T> {
   Info info;
 
   public SearchResult(List<T> content, Boolean hasNextFrom, Long totalHits) {
+    this(content, hasNextFrom, totalHits, null);
+  }
+
+  public SearchResult(List<T> content, Boolean hasNextFrom, Long totalHits, String nextCursor) {
     this.content = content;
-    this.info = new Info(hasNextFrom, totalHits, content.size());
+    this.info = new Info(hasNextFrom, totalHits, content.size(), nextCursor);
   }
 
   @Value
@@ -18,5 +22,6 @@ public class SearchResult<T> {
     Boolean hasNextFrom;
     Long totalHits;
     Integer contentCount;
+    String nextCursor;
   }
 }
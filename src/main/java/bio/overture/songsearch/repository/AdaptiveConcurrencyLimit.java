@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import bio.overture.songsearch.config.ElasticsearchProperties.ConcurrencyLimit;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+import lombok.NonNull;
+import lombok.val;
+
+/**
+ * AIMD limit on the requests in flight to Elasticsearch. While responses come back faster than
+ * slowLatency the limit grows by about one per round of requests, a slow or failed response cuts
+ * it by backoffRatio. It settles around the concurrency Elasticsearch serves without queuing, and
+ * requests over it are refused instead of waiting in the connection pool until they time out.
+ */
+class AdaptiveConcurrencyLimit {
+  private final int minLimit;
+  private final int maxLimit;
+  private final long slowLatencyNanos;
+  private final double backoffRatio;
+  private final LongSupplier nanoClock;
+
+  // guarded by this
+  private double limit;
+  private int inFlight;
+  // responses to requests sent before the last cut do not cut the limit again
+  private long lastCutNanos;
+
+  AdaptiveConcurrencyLimit(
+      int initialLimit,
+      int minLimit,
+      int maxLimit,
+      @NonNull Duration slowLatency,
+      double backoffRatio,
+      @NonNull LongSupplier nanoClock) {
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.slowLatencyNanos = slowLatency.toNanos();
+    this.backoffRatio = backoffRatio;
+    this.nanoClock = nanoClock;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    this.lastCutNanos = nanoClock.getAsLong();
+  }
+
+  static AdaptiveConcurrencyLimit create(
+      @NonNull ConcurrencyLimit properties, @NonNull MeterRegistry meterRegistry) {
+    val concurrencyLimit =
+        new AdaptiveConcurrencyLimit(
+            properties.getInitialLimit(),
+            properties.getMinLimit(),
+            properties.getMaxLimit(),
+            properties.getSlowLatency(),
+            properties.getBackoffRatio(),
+            System::nanoTime);
+    Gauge.builder(
+            "songsearch.es.concurrency.limit", concurrencyLimit, AdaptiveConcurrencyLimit::getLimit)
+        .description("Requests allowed in flight to Elasticsearch")
+        .register(meterRegistry);
+    Gauge.builder(
+            "songsearch.es.concurrency.inflight",
+            concurrencyLimit,
+            AdaptiveConcurrencyLimit::getInFlight)
+        .description("Requests in flight to Elasticsearch")
+        .register(meterRegistry);
+    return concurrencyLimit;
+  }
+
+  /** Takes a slot if one is free, the caller releases it once the request has completed. */
+  synchronized boolean tryAcquire() {
+    if (inFlight >= (int) limit) {
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * @param startNanos when the request was sent, on the same clock
+   * @param overloaded whether the request failed in a way that says Elasticsearch is overloaded
+   */
+  synchronized void release(long startNanos, boolean overloaded) {
+    inFlight--;
+    if (overloaded || nanoClock.getAsLong() - startNanos > slowLatencyNanos) {
+      if (startNanos - lastCutNanos > 0) {
+        limit = Math.max(minLimit, limit * backoffRatio);
+        lastCutNanos = nanoClock.getAsLong();
+      }
+    } else if ((inFlight + 1) * 2 >= limit) {
+      // only grow a limit that is being used
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  /** Gives a slot back without a response to learn from, e.g. for a request never sent. */
+  synchronized void cancel() {
+    inFlight--;
+  }
+
+  /** @return whether a request sent now would be refused */
+  synchronized boolean isSaturated() {
+    return inFlight >= (int) limit;
+  }
+
+  synchronized double getLimit() {
+    return limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+}
@@ -18,134 +18,197 @@
 
 package bio.overture.songsearch.repository;
 
+import static bio.overture.songsearch.config.constants.EsDefaults.*;
 import static bio.overture.songsearch.config.constants.SearchFields.*;
 import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.*;
+import static bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath.nestedTerm;
+import static bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath.term;
 import static java.util.Collections.emptyList;
+import static org.elasticsearch.index.query.QueryBuilders.constantScoreQuery;
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
+import static org.elasticsearch.search.sort.FieldSortBuilder.DOC_FIELD_NAME;
 import static org.elasticsearch.search.sort.SortOrder.ASC;
+import static org.elasticsearch.search.sort.SortOrder.DESC;
 
 import bio.overture.songsearch.config.ElasticsearchProperties;
+import bio.overture.songsearch.model.Facet;
 import bio.overture.songsearch.model.Sort;
+import bio.overture.songsearch.utils.FilterQueryCompiler;
+import bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath;
+import bio.overture.songsearch.utils.SortBuilderResolver;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import java.util.*;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import lombok.NonNull;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
-import org.apache.lucene.search.join.ScoreMode;
 import org.elasticsearch.action.search.MultiSearchRequest;
 import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.index.query.AbstractQueryBuilder;
-import org.elasticsearch.index.query.NestedQueryBuilder;
-import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
-import org.elasticsearch.search.sort.FieldSortBuilder;
-import org.elasticsearch.search.sort.SortBuilders;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 
 @Slf4j
 @Component
 public class AnalysisRepository {
-  private static final Map<String, Function<String, AbstractQueryBuilder<?>>> QUERY_RESOLVER =
-      argumentPathMap();
+  private static final FilterQueryCompiler QUERY_COMPILER =
+      new FilterQueryCompiler(argumentPathMap());
 
-  private static final Map<String, FieldSortBuilder> SORT_BUILDER_RESOLVER = sortPathMap();
+  private static final SortBuilderResolver SORT_BUILDER_RESOLVER =
+      new SortBuilderResolver(sortPathMap());
 
-  private final RestHighLevelClient client;
+  private static final Map<String, String> AGGREGATION_FIELD_RESOLVER = aggregationPathMap();
+  private static final Set<String> DATE_FACET_FIELDS =
+      Set.of(PUBLISHED_AT, UPDATED_AT, FIRST_PUBLISHED_AT);
+
+  private final SearchExecutor searchExecutor;
   private final String analysisCentricIndex;
 
   @Autowired
   public AnalysisRepository(
-      @NonNull RestHighLevelClient client,
+      @NonNull SearchExecutor searchExecutor,
       @NonNull ElasticsearchProperties elasticSearchProperties) {
-    this.client = client;
+    this.searchExecutor = searchExecutor;
     this.analysisCentricIndex = elasticSearchProperties.getAnalysisCentricIndex();
   }
 
-  private static Map<String, Function<String, AbstractQueryBuilder<?>>> argumentPathMap() {
-    return ImmutableMap.<String, Function<String, AbstractQueryBuilder<?>>>builder()
-        .put(ANALYSIS_ID, value -> new TermQueryBuilder("analysis_id", value))
-        .put(ANALYSIS_TYPE, value -> new TermQueryBuilder("analysis_type", value))
-        .put(ANALYSIS_VERSION, value -> new TermQueryBuilder("analysis_version", value))
-        .put(ANALYSIS_STATE, value -> new TermQueryBuilder("analysis_state", value))
-        .put(STUDY_ID, value -> new TermQueryBuilder("study_id", value))
-        .put(RUN_ID, value -> new TermQueryBuilder("workflow.run_id", value))
-        .put(
-            DONOR_ID,
-            value ->
-                new NestedQueryBuilder(
-                    "donors", new TermQueryBuilder("donors.donor_id", value), ScoreMode.None))
-        .put(
-            SPECIMEN_ID,
-            value ->
-                new NestedQueryBuilder(
-                    "donors.specimens",
-                    new TermQueryBuilder("donors.specimens.specimen_id", value),
-                    ScoreMode.None))
+  private static Map<String, FilterPath> argumentPathMap() {
+    return ImmutableMap.<String, FilterPath>builder()
+        .put(ANALYSIS_ID, term("analysis_id"))
+        .put(ANALYSIS_TYPE, term("analysis_type"))
+        .put(ANALYSIS_VERSION, term("analysis_version"))
+        .put(ANALYSIS_STATE, term("analysis_state"))
+        .put(STUDY_ID, term("study_id"))
+        .put(RUN_ID, term("workflow.run_id"))
+        .put(DONOR_ID, nestedTerm("donors", "donors.donor_id"))
+        .put(SPECIMEN_ID, nestedTerm("donors.specimens", "donors.specimens.specimen_id"))
         .put(
             SAMPLE_ID,
-            value ->
-                new NestedQueryBuilder(
-                    "donors.specimens.samples",
-                    new TermQueryBuilder("donors.specimens.samples.sample_id", value),
-                    ScoreMode.None))
+            nestedTerm("donors.specimens.samples", "donors.specimens.samples.sample_id"))
         .put(
             MATCHED_NORMAL_SUBMITTER_SAMPLE_ID,
-            value ->
-                new NestedQueryBuilder(
-                    "donors.specimens.samples",
-                    new TermQueryBuilder(
-                        "donors.specimens.samples.matched_normal_submitter_sample_id", value),
-                    ScoreMode.None))
+            nestedTerm(
+                "donors.specimens.samples",
+                "donors.specimens.samples.matched_normal_submitter_sample_id"))
         .put(
             SUBMITTER_SAMPLE_ID,
-            value ->
-                new NestedQueryBuilder(
-                    "donors.specimens.samples",
-                    new TermQueryBuilder("donors.specimens.samples.submitter_sample_id", value),
-                    ScoreMode.None))
+            nestedTerm("donors.specimens.samples", "donors.specimens.samples.submitter_sample_id"))
+        .build();
+  }
+
+  private static Map<String, String> sortPathMap() {
+    return ImmutableMap.<String, String>builder()
+        .put(ANALYSIS_ID, "analysis_id")
+        .put(ANALYSIS_STATE, "analysis_state")
+        .put(PUBLISHED_AT, "published_at")
+        .put(UPDATED_AT, "updated_at")
+        .put(FIRST_PUBLISHED_AT, "first_published_at")
         .build();
   }
 
-  private static Map<String, FieldSortBuilder> sortPathMap() {
-    return ImmutableMap.<String, FieldSortBuilder>builder()
-        .put(ANALYSIS_ID, SortBuilders.fieldSort("analysis_id"))
-        .put(ANALYSIS_STATE, SortBuilders.fieldSort("analysis_state"))
-        .put(PUBLISHED_AT, SortBuilders.fieldSort("published_at"))
-        .put(UPDATED_AT, SortBuilders.fieldSort("updated_at"))
-        .put(FIRST_PUBLISHED_AT, SortBuilders.fieldSort("first_published_at"))
+  private static Map<String, String> aggregationPathMap() {
+    return ImmutableMap.<String, String>builder()
+        .put(ANALYSIS_TYPE, "analysis_type")
+        .put(ANALYSIS_VERSION, "analysis_version")
+        .put(ANALYSIS_STATE, "analysis_state")
+        .put(STUDY_ID, "study_id")
+        .put(PUBLISHED_AT, "published_at")
+        .put(UPDATED_AT, "updated_at")
+        .put(FIRST_PUBLISHED_AT, "first_published_at")
         .build();
   }
 
-  public SearchResponse getAnalyses(Map<String, Object> filter, Map<String, Integer> page) {
+  /** @return the fields a filter may have, as named in the graphql filter input */
+  public Set<String> getFilterFields() {
+    return QUERY_COMPILER.getFilterFields();
+  }
+
+  public CompletableFuture<SearchResponse> getAnalyses(
+      Map<String, Object> filter, Map<String, Integer> page) {
     return getAnalyses(filter, page, emptyList());
   }
 
-  public SearchResponse getAnalyses(
+  public CompletableFuture<SearchResponse> getAnalyses(
       Map<String, Object> filter, Map<String, Integer> page, List<Sort> sorts) {
-    final AbstractQueryBuilder<?> query =
-        (filter == null || filter.size() == 0)
-            ? matchAllQuery()
-            : queryFromArgs(QUERY_RESOLVER, filter);
+    return getAnalyses(filter, page, sorts, null, null);
+  }
+
+  /**
+   * @param sourceIncludes _source fields to fetch, all of them when null
+   * @param searchAfter sort values of the last hit of the previous page, ignored when null
+   */
+  public CompletableFuture<SearchResponse> getAnalyses(
+      Map<String, Object> filter,
+      Map<String, Integer> page,
+      List<Sort> sorts,
+      String[] sourceIncludes,
+      Object[] searchAfter) {
+    val query = QUERY_COMPILER.compile(filter);
 
     val searchSourceBuilder = createSearchSourceBuilder(query, page, sorts);
+    withSourceIncludes(searchSourceBuilder, sourceIncludes);
+    withSearchAfter(searchSourceBuilder, searchAfter);
 
     return execute(searchSourceBuilder);
   }
 
-  public MultiSearchResponse getAnalyses(
+  public CompletableFuture<SearchResponse> countAnalyses(
+      Map<String, Object> filter, List<Facet> facets) {
+    val query = QUERY_COMPILER.compile(filter);
+
+    val searchSourceBuilder = createCountSourceBuilder(query);
+    facetsToEsAggregationBuilders(AGGREGATION_FIELD_RESOLVER, DATE_FACET_FIELDS, facets)
+        .forEach(searchSourceBuilder::aggregation);
+
+    return executeCount(searchSourceBuilder);
+  }
+
+  /**
+   * Looks ids up ES_MAX_RESULT_WINDOW at a time, as no search may return more hits, with one search
+   * per chunk in a single msearch
+   */
+  public CompletableFuture<MultiSearchResponse> getAnalysesByIds(
+      Map<String, Object> filter, List<String> analysisIds) {
+    val searchSourceBuilders =
+        Lists.partition(analysisIds, ES_MAX_RESULT_WINDOW).stream()
+            .map(
+                chunk ->
+                    new SearchSourceBuilder()
+                        .query(QUERY_COMPILER.compile(filter, termsQuery("analysis_id", chunk)))
+                        .size(chunk.size()))
+            .collect(Collectors.toList());
+    return execute(searchSourceBuilders);
+  }
+
+  /** One search per run in a single msearch, so every run gets its own default page of hits */
+  public CompletableFuture<MultiSearchResponse> getAnalysesByRunIds(
+      Map<String, Object> filter, List<String> runIds) {
+    val searchSourceBuilders =
+        runIds.stream()
+            .map(
+                runId ->
+                    createSearchSourceBuilder(
+                        QUERY_COMPILER.compile(filter, termQuery("workflow.run_id", runId)), null))
+            .collect(Collectors.toList());
+    return execute(searchSourceBuilders);
+  }
+
+  public CompletableFuture<MultiSearchResponse> getAnalyses(
       List<Map<String, Object>> multipleFilters, Map<String, Integer> page) {
     List<SearchSourceBuilder> searchSourceBuilders =
         multipleFilters.stream()
             .filter(f -> f != null && f.size() != 0)
-            .map(f -> createSearchSourceBuilder(queryFromArgs(QUERY_RESOLVER, f), page))
+            .map(f -> createSearchSourceBuilder(QUERY_COMPILER.compile(f), page))
             .collect(Collectors.toList());
 
     if (searchSourceBuilders.isEmpty()) {
@@ -155,20 +218,72 @@ public class AnalysisRepository {
     return execute(searchSourceBuilders);
   }
 
+  /**
+   * Analyses updated at or after the given time, oldest first, for following changes to the index
+   *
+   * @param searchAfter sort values (updated_at, analysis_id) of the last hit of the previous page
+   */
+  public CompletableFuture<SearchResponse> getAnalysesUpdatedSince(
+      long updatedAtMillis, int size, String[] sourceIncludes, Object[] searchAfter) {
+    val query =
+        constantScoreQuery(rangeQuery("updated_at").gte(updatedAtMillis).format("epoch_millis"));
+    val searchSourceBuilder =
+        new SearchSourceBuilder()
+            .query(query)
+            .sort(SORT_BUILDER_RESOLVER.resolve(UPDATED_AT, ASC))
+            .sort(SORT_BUILDER_RESOLVER.resolve(ANALYSIS_ID, ASC))
+            .size(size);
+    withSourceIncludes(searchSourceBuilder, sourceIncludes);
+    withSearchAfter(searchSourceBuilder, searchAfter);
+    return execute(searchSourceBuilder);
+  }
+
+  /** The most recently updated analysis, its only sort value is its updated_at */
+  public CompletableFuture<SearchResponse> getLatestUpdatedAnalysis() {
+    val searchSourceBuilder =
+        new SearchSourceBuilder()
+            .query(matchAllQuery())
+            .sort(SORT_BUILDER_RESOLVER.resolve(UPDATED_AT, DESC))
+            .fetchSource(false)
+            .size(1);
+    return execute(searchSourceBuilder);
+  }
+
+  /**
+   * Streams every document matching the filter, in index order, with a scroll
+   *
+   * @param sourceIncludes _source fields to fetch, all of them when null
+   */
+  public Flux<SearchHit> scrollAnalyses(Map<String, Object> filter, String[] sourceIncludes) {
+    val query = QUERY_COMPILER.compile(filter);
+
+    // _doc is the cheapest order to scroll in, no sort values have to be computed
+    val searchSourceBuilder =
+        new SearchSourceBuilder().query(query).size(ES_SCROLL_SIZE).sort(DOC_FIELD_NAME);
+    withSourceIncludes(searchSourceBuilder, sourceIncludes);
+
+    val searchRequest = new SearchRequest(analysisCentricIndex).source(searchSourceBuilder);
+    return searchExecutor.scrollHits(searchRequest, ES_SCROLL_KEEP_ALIVE);
+  }
+
   private SearchSourceBuilder createSearchSourceBuilder(
-      AbstractQueryBuilder<?> query, Map<String, Integer> page) {
+      QueryBuilder query, Map<String, Integer> page) {
     return createSearchSourceBuilder(query, page, emptyList());
   }
 
   private SearchSourceBuilder createSearchSourceBuilder(
-      AbstractQueryBuilder<?> query, Map<String, Integer> page, List<Sort> sorts) {
+      QueryBuilder query, Map<String, Integer> page, List<Sort> sorts) {
     val searchSourceBuilder = new SearchSourceBuilder();
 
     if (sorts.isEmpty()) {
-      searchSourceBuilder.sort(SORT_BUILDER_RESOLVER.get(UPDATED_AT).order(ASC));
+      searchSourceBuilder.sort(SORT_BUILDER_RESOLVER.resolve(UPDATED_AT, ASC));
     } else {
-      val sortBuilders = sortsToEsSortBuilders(SORT_BUILDER_RESOLVER, sorts);
-      sortBuilders.forEach(searchSourceBuilder::sort);
+      SORT_BUILDER_RESOLVER.resolve(sorts).forEach(searchSourceBuilder::sort);
+    }
+
+    // analysis_id is unique, so it gives every hit a distinct position that search_after can use
+    if (sorts.stream().noneMatch(sort -> ANALYSIS_ID.equals(sort.getFieldName()))) {
+      searchSourceBuilder.sort(SORT_BUILDER_RESOLVER.resolve(ANALYSIS_ID, ASC));
     }
 
     searchSourceBuilder.query(query);
@@ -181,17 +296,23 @@ public class AnalysisRepository {
     return searchSourceBuilder;
   }
 
-  @SneakyThrows
-  private SearchResponse execute(@NonNull SearchSourceBuilder builder) {
+  private CompletableFuture<SearchResponse> execute(@NonNull SearchSourceBuilder builder) {
+    val searchRequest = new SearchRequest(analysisCentricIndex);
+    searchRequest.source(builder);
+    return searchExecutor.search(searchRequest);
+  }
+
+  private CompletableFuture<SearchResponse> executeCount(@NonNull SearchSourceBuilder builder) {
     val searchRequest = new SearchRequest(analysisCentricIndex);
     searchRequest.source(builder);
-    return client.search(searchRequest, RequestOptions.DEFAULT);
+    searchRequest.requestCache(true);
+    return searchExecutor.search(searchRequest);
   }
 
-  @SneakyThrows
-  private MultiSearchResponse execute(@NonNull List<SearchSourceBuilder> builders) {
+  private CompletableFuture<MultiSearchResponse> execute(
+      @NonNull List<SearchSourceBuilder> builders) {
     MultiSearchRequest mSearchRequest = new MultiSearchRequest();
-    builders.forEach(b -> mSearchRequest.add(new SearchRequest().source(b)));
-    return client.msearch(mSearchRequest, RequestOptions.DEFAULT);
+    builders.forEach(b -> mSearchRequest.add(new SearchRequest(analysisCentricIndex).source(b)));
+    return searchExecutor.multiSearch(mSearchRequest);
   }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import graphql.ErrorClassification;
+import graphql.ErrorType;
+import graphql.GraphQLError;
+import graphql.language.SourceLocation;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A request to Elasticsearch refused without being sent, because the circuit breaker is open, the
+ * concurrency limit is reached or the operation's time budget has run out. It is a {@link
+ * GraphQLError} so clients get the reason and a code to retry on, and it carries no stack trace as
+ * it is thrown the most when the service is busiest.
+ */
+public class ElasticsearchUnavailableException extends RuntimeException implements GraphQLError {
+  public static final String CODE = "ELASTICSEARCH_UNAVAILABLE";
+
+  // reasons, also used to tag the songsearch.es.rejected metric
+  static final String CIRCUIT_OPEN = "circuit_open";
+  static final String OVERLOADED = "overloaded";
+  static final String BUDGET_EXHAUSTED = "budget_exhausted";
+
+  private final String reason;
+
+  ElasticsearchUnavailableException(String reason, String message) {
+    super(message, null, false, false);
+    this.reason = reason;
+  }
+
+  @Override
+  public List<SourceLocation> getLocations() {
+    return null;
+  }
+
+  @Override
+  public ErrorClassification getErrorType() {
+    return ErrorType.DataFetchingException;
+  }
+
+  @Override
+  public Map<String, Object> getExtensions() {
+    return Map.of("code", CODE, "reason", reason);
+  }
+}
@@ -18,98 +18,141 @@
 
 package bio.overture.songsearch.repository;
 
+import static bio.overture.songsearch.config.constants.EsDefaults.ES_MAX_RESULT_WINDOW;
+import static bio.overture.songsearch.config.constants.EsDefaults.ES_SCROLL_KEEP_ALIVE;
+import static bio.overture.songsearch.config.constants.EsDefaults.ES_SCROLL_SIZE;
 import static bio.overture.songsearch.config.constants.SearchFields.*;
-import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.queryFromArgs;
-import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.sortsToEsSortBuilders;
-import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.createCountSourceBuilder;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.facetsToEsAggregationBuilders;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.withSearchAfter;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.withSourceIncludes;
+import static bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath.nestedTerm;
+import static bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath.term;
+import static java.util.stream.Collectors.toList;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
+import static org.elasticsearch.search.sort.FieldSortBuilder.DOC_FIELD_NAME;
 import static org.elasticsearch.search.sort.SortOrder.ASC;
 
 import bio.overture.songsearch.config.ElasticsearchProperties;
+import bio.overture.songsearch.model.Facet;
 import bio.overture.songsearch.model.Sort;
+import bio.overture.songsearch.utils.FilterQueryCompiler;
+import bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath;
+import bio.overture.songsearch.utils.SortBuilderResolver;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import lombok.NonNull;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
-import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.client.RestHighLevelClient;
-import org.elasticsearch.index.query.AbstractQueryBuilder;
-import org.elasticsearch.index.query.NestedQueryBuilder;
-import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
-import org.elasticsearch.search.sort.FieldSortBuilder;
-import org.elasticsearch.search.sort.SortBuilders;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
 
 @Slf4j
 @Component
 public class FileRepository {
-  private static final Map<String, Function<String, AbstractQueryBuilder<?>>> QUERY_RESOLVER =
-      argumentPathMap();
+  private static final FilterQueryCompiler QUERY_COMPILER =
+      new FilterQueryCompiler(argumentPathMap());
 
-  private static final Map<String, FieldSortBuilder> SORT_BUILDER_RESOLVER = sortPathMap();
+  private static final SortBuilderResolver SORT_BUILDER_RESOLVER =
+      new SortBuilderResolver(sortPathMap());
 
-  private final RestHighLevelClient client;
+  private static final Map<String, String> AGGREGATION_FIELD_RESOLVER = aggregationPathMap();
+  // every file facet field is a keyword
+  private static final Set<String> DATE_FACET_FIELDS = Set.of();
+
+  private final SearchExecutor searchExecutor;
   private final String fileCentricIndex;
 
   @Autowired
   public FileRepository(
-      @NonNull RestHighLevelClient client,
+      @NonNull SearchExecutor searchExecutor,
       @NonNull ElasticsearchProperties elasticSearchProperties) {
-    this.client = client;
+    this.searchExecutor = searchExecutor;
     this.fileCentricIndex = elasticSearchProperties.getFileCentricIndex();
   }
 
-  private static Map<String, Function<String, AbstractQueryBuilder<?>>> argumentPathMap() {
-    return ImmutableMap.<String, Function<String, AbstractQueryBuilder<?>>>builder()
-        .put(FILE_OBJECT_ID, value -> new TermQueryBuilder("object_id", value))
-        .put(FILE_NAME, value -> new TermQueryBuilder("file.name", value))
-        .put(FILE_ACCESS, value -> new TermQueryBuilder("file_access", value))
-        .put(FILE_DATA_TYPE, value -> new TermQueryBuilder("data_type", value))
-        .put(STUDY_ID, value -> new TermQueryBuilder("study_id", value))
-        .put(ANALYSIS_ID, value -> new TermQueryBuilder("analysis.analysis_id", value))
-        .put(
-            DONOR_ID,
-            value ->
-                new NestedQueryBuilder(
-                    "donors", new TermQueryBuilder("donors.donor_id", value), ScoreMode.None))
+  private static Map<String, FilterPath> argumentPathMap() {
+    return ImmutableMap.<String, FilterPath>builder()
+        .put(FILE_OBJECT_ID, term("object_id"))
+        .put(FILE_NAME, term("file.name"))
+        .put(FILE_ACCESS, term("file_access"))
+        .put(FILE_DATA_TYPE, term("data_type"))
+        .put(STUDY_ID, term("study_id"))
+        .put(ANALYSIS_ID, term("analysis.analysis_id"))
+        .put(DONOR_ID, nestedTerm("donors", "donors.donor_id"))
+        .build();
+  }
+
+  private static Map<String, String> sortPathMap() {
+    return ImmutableMap.<String, String>builder()
+        .put(FILE_OBJECT_ID, "object_id")
+        .put(FILE_ACCESS, "file_access")
+        .put(FILE_DATA_TYPE, "data_type")
+        .put(FILE_NAME, "file.name")
         .build();
   }
 
-  private static Map<String, FieldSortBuilder> sortPathMap() {
-    return ImmutableMap.<String, FieldSortBuilder>builder()
-        .put(FILE_OBJECT_ID, SortBuilders.fieldSort("object_id"))
-        .put(FILE_ACCESS, SortBuilders.fieldSort("file_access"))
-        .put(FILE_DATA_TYPE, SortBuilders.fieldSort("data_type"))
-        .put(FILE_NAME, SortBuilders.fieldSort("file.name"))
+  private static Map<String, String> aggregationPathMap() {
+    return ImmutableMap.<String, String>builder()
+        .put(FILE_ACCESS, "file_access")
+        .put(FILE_DATA_TYPE, "data_type")
+        .put(FILE_TYPE, "file_type")
+        .put(STUDY_ID, "study_id")
+        .put(ANALYSIS_TYPE, "analysis.analysis_type")
+        .put(ANALYSIS_STATE, "analysis.analysis_state")
         .build();
   }
 
-  public SearchResponse getFiles(Map<String, Object> filter, Map<String, Integer> page) {
+  /** @return the fields a filter may have, as named in the graphql filter input */
+  public Set<String> getFilterFields() {
+    return QUERY_COMPILER.getFilterFields();
+  }
+
+  public CompletableFuture<SearchResponse> getFiles(
+      Map<String, Object> filter, Map<String, Integer> page) {
     return getFiles(filter, page, List.of());
   }
 
-  public SearchResponse getFiles(
+  public CompletableFuture<SearchResponse> getFiles(
       Map<String, Object> filter, Map<String, Integer> page, List<Sort> sorts) {
-    final AbstractQueryBuilder<?> query =
-        (filter == null || filter.size() == 0)
-            ? matchAllQuery()
-            : queryFromArgs(QUERY_RESOLVER, filter);
+    return getFiles(filter, page, sorts, null, null);
+  }
+
+  /**
+   * @param sourceIncludes _source fields to fetch, all of them when null
+   * @param searchAfter sort values of the last hit of the previous page, ignored when null
+   */
+  public CompletableFuture<SearchResponse> getFiles(
+      Map<String, Object> filter,
+      Map<String, Integer> page,
+      List<Sort> sorts,
+      String[] sourceIncludes,
+      Object[] searchAfter) {
+    val query = QUERY_COMPILER.compile(filter);
 
     val searchSourceBuilder = new SearchSourceBuilder();
 
     if (sorts.isEmpty()) {
-      searchSourceBuilder.sort(SORT_BUILDER_RESOLVER.get(FILE_OBJECT_ID).order(ASC));
+      searchSourceBuilder.sort(SORT_BUILDER_RESOLVER.resolve(FILE_OBJECT_ID, ASC));
     } else {
-      val sortBuilders = sortsToEsSortBuilders(SORT_BUILDER_RESOLVER, sorts);
-      sortBuilders.forEach(searchSourceBuilder::sort);
+      SORT_BUILDER_RESOLVER.resolve(sorts).forEach(searchSourceBuilder::sort);
+
+      // object_id is unique, so it gives every hit a distinct position that search_after can use
+      if (sorts.stream().noneMatch(sort -> FILE_OBJECT_ID.equals(sort.getFieldName()))) {
+        searchSourceBuilder.sort(SORT_BUILDER_RESOLVER.resolve(FILE_OBJECT_ID, ASC));
+      }
     }
 
     searchSourceBuilder.query(query);
@@ -119,13 +162,73 @@ public class FileRepository {
       searchSourceBuilder.from(page.get("from"));
     }
 
+    withSourceIncludes(searchSourceBuilder, sourceIncludes);
+    withSearchAfter(searchSourceBuilder, searchAfter);
+
     return execute(searchSourceBuilder);
   }
 
-  @SneakyThrows
-  private SearchResponse execute(@NonNull SearchSourceBuilder builder) {
+  public CompletableFuture<SearchResponse> countFiles(
+      Map<String, Object> filter, List<Facet> facets) {
+    val query = QUERY_COMPILER.compile(filter);
+
+    val searchSourceBuilder = createCountSourceBuilder(query);
+    facetsToEsAggregationBuilders(AGGREGATION_FIELD_RESOLVER, DATE_FACET_FIELDS, facets)
+        .forEach(searchSourceBuilder::aggregation);
+
+    return executeCount(searchSourceBuilder);
+  }
+
+  /**
+   * Looks ids up ES_MAX_RESULT_WINDOW at a time, as no search may return more hits, with one search
+   * per chunk in a single msearch
+   */
+  public CompletableFuture<MultiSearchResponse> getFilesByObjectIds(List<String> objectIds) {
+    val searchSourceBuilders =
+        Lists.partition(objectIds, ES_MAX_RESULT_WINDOW).stream()
+            .map(
+                chunk ->
+                    new SearchSourceBuilder()
+                        .query(termsQuery("object_id", chunk))
+                        .size(chunk.size()))
+            .collect(toList());
+    return execute(searchSourceBuilders);
+  }
+
+  /**
+   * Streams every document matching the filter, in index order, with a scroll
+   *
+   * @param sourceIncludes _source fields to fetch, all of them when null
+   */
+  public Flux<SearchHit> scrollFiles(Map<String, Object> filter, String[] sourceIncludes) {
+    val query = QUERY_COMPILER.compile(filter);
+
+    // _doc is the cheapest order to scroll in, no sort values have to be computed
+    val searchSourceBuilder =
+        new SearchSourceBuilder().query(query).size(ES_SCROLL_SIZE).sort(DOC_FIELD_NAME);
+    withSourceIncludes(searchSourceBuilder, sourceIncludes);
+
+    val searchRequest = new SearchRequest(fileCentricIndex).source(searchSourceBuilder);
+    return searchExecutor.scrollHits(searchRequest, ES_SCROLL_KEEP_ALIVE);
+  }
+
+  private CompletableFuture<SearchResponse> execute(@NonNull SearchSourceBuilder builder) {
     val searchRequest = new SearchRequest(fileCentricIndex);
     searchRequest.source(builder);
-    return client.search(searchRequest, RequestOptions.DEFAULT);
+    return searchExecutor.search(searchRequest);
+  }
+
+  private CompletableFuture<SearchResponse> executeCount(@NonNull SearchSourceBuilder builder) {
+    val searchRequest = new SearchRequest(fileCentricIndex);
+    searchRequest.source(builder);
+    searchRequest.requestCache(true);
+    return searchExecutor.search(searchRequest);
+  }
+
+  private CompletableFuture<MultiSearchResponse> execute(
+      @NonNull List<SearchSourceBuilder> builders) {
+    val multiSearchRequest = new MultiSearchRequest();
+    builders.forEach(b -> multiSearchRequest.add(new SearchRequest(fileCentricIndex).source(b)));
+    return searchExecutor.multiSearch(multiSearchRequest);
   }
 }
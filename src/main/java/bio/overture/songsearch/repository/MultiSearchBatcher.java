@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+
+/**
+ * Collects searches from concurrent requests for a short window and sends them to Elasticsearch as
+ * one _msearch, then hands each caller its own item of the response. Each search waits at most one
+ * window, in exchange a burst of requests costs one round trip through the connection pool instead
+ * of one per search.
+ */
+@Slf4j
+class MultiSearchBatcher {
+  private final Transport transport;
+  private final long windowNanos;
+  private final int maxBatchSize;
+  private final Executor responseExecutor;
+  private final LongSupplier nanoClock;
+  private final WindowTimer timer;
+
+  private final DistributionSummary batchSize;
+  private final Timer queueDelay;
+
+  // guarded by this, swapped for a new list whenever a batch is sent
+  private List<PendingSearch> pending = new ArrayList<>();
+
+  MultiSearchBatcher(
+      @NonNull RestHighLevelClient client,
+      @NonNull RequestOptions requestOptions,
+      @NonNull Duration window,
+      int maxBatchSize,
+      @NonNull Executor responseExecutor,
+      @NonNull MeterRegistry meterRegistry) {
+    this(
+        transport(client, requestOptions),
+        window,
+        maxBatchSize,
+        responseExecutor,
+        meterRegistry,
+        System::nanoTime,
+        daemonTimer());
+  }
+
+  MultiSearchBatcher(
+      @NonNull Transport transport,
+      @NonNull Duration window,
+      int maxBatchSize,
+      @NonNull Executor responseExecutor,
+      @NonNull MeterRegistry meterRegistry,
+      @NonNull LongSupplier nanoClock,
+      @NonNull WindowTimer timer) {
+    this.transport = transport;
+    this.windowNanos = window.toNanos();
+    this.maxBatchSize = maxBatchSize;
+    this.responseExecutor = responseExecutor;
+    this.nanoClock = nanoClock;
+    this.timer = timer;
+    this.batchSize =
+        DistributionSummary.builder("songsearch.es.batch.size")
+            .description("Searches sent together in one _msearch")
+            .publishPercentiles(0.5, 0.99)
+            .register(meterRegistry);
+    this.queueDelay =
+        Timer.builder("songsearch.es.batch.queue.delay")
+            .description("Time a search waited for its batch to be sent")
+            .publishPercentiles(0.5, 0.99)
+            .register(meterRegistry);
+  }
+
+  /** The calls a batch is sent with, tests answer them without Elasticsearch */
+  interface Transport {
+    void search(SearchRequest searchRequest, ActionListener<SearchResponse> listener);
+
+    void multiSearch(
+        MultiSearchRequest multiSearchRequest, ActionListener<MultiSearchResponse> listener);
+  }
+
+  /** Runs the flush of a window once it has passed, tests run it when they choose */
+  interface WindowTimer {
+    void schedule(Runnable flush, long delayNanos);
+
+    void shutdown();
+  }
+
+  private static Transport transport(RestHighLevelClient client, RequestOptions requestOptions) {
+    return new Transport() {
+      @Override
+      public void search(SearchRequest searchRequest, ActionListener<SearchResponse> listener) {
+        client.searchAsync(searchRequest, requestOptions, listener);
+      }
+
+      @Override
+      public void multiSearch(
+          MultiSearchRequest multiSearchRequest, ActionListener<MultiSearchResponse> listener) {
+        client.msearchAsync(multiSearchRequest, requestOptions, listener);
+      }
+    };
+  }
+
+  private static WindowTimer daemonTimer() {
+    val scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              val thread = new Thread(runnable, "es-search-batcher");
+              thread.setDaemon(true);
+              return thread;
+            });
+    return new WindowTimer() {
+      @Override
+      public void schedule(Runnable flush, long delayNanos) {
+        scheduler.schedule(flush, delayNanos, NANOSECONDS);
+      }
+
+      @Override
+      public void shutdown() {
+        scheduler.shutdown();
+      }
+    };
+  }
+
+  CompletableFuture<SearchResponse> submit(@NonNull SearchRequest searchRequest) {
+    val search = new PendingSearch(searchRequest, nanoClock.getAsLong());
+    List<PendingSearch> fullBatch = null;
+    synchronized (this) {
+      pending.add(search);
+      if (pending.size() >= maxBatchSize) {
+        fullBatch = drain();
+      } else if (pending.size() == 1) {
+        // a window left over from a batch that filled up early may send this one a bit sooner,
+        // which only makes that batch smaller
+        timer.schedule(this::flush, windowNanos);
+      }
+    }
+    if (fullBatch != null) {
+      send(fullBatch);
+    }
+    return search.future;
+  }
+
+  void shutdown() {
+    timer.shutdown();
+    flush();
+  }
+
+  private void flush() {
+    final List<PendingSearch> batch;
+    synchronized (this) {
+      batch = drain();
+    }
+    if (!batch.isEmpty()) {
+      send(batch);
+    }
+  }
+
+  private List<PendingSearch> drain() {
+    val batch = pending;
+    pending = new ArrayList<>();
+    return batch;
+  }
+
+  private void send(List<PendingSearch> batch) {
+    val now = nanoClock.getAsLong();
+    batch.forEach(search -> queueDelay.record(now - search.enqueuedAt, NANOSECONDS));
+    batchSize.record(batch.size());
+
+    try {
+      if (batch.size() == 1) {
+        // nothing joined it, msearch would only add its per item overhead
+        val search = batch.get(0);
+        transport.search(search.request, ActionListener.wrap(search::complete, search::fail));
+        return;
+      }
+      val multiSearchRequest = new MultiSearchRequest();
+      batch.forEach(search -> multiSearchRequest.add(search.request));
+      transport.multiSearch(
+          multiSearchRequest,
+          ActionListener.wrap(
+              response -> route(batch, response), e -> batch.forEach(search -> search.fail(e))));
+    } catch (RuntimeException e) {
+      log.error("Failed to send a batch of {} searches", batch.size(), e);
+      batch.forEach(search -> search.fail(e));
+    }
+  }
+
+  // msearch answers in request order, one failed item fails only its own caller
+  private static void route(List<PendingSearch> batch, MultiSearchResponse response) {
+    val items = response.getResponses();
+    for (int i = 0; i < batch.size(); i++) {
+      val item = items[i];
+      if (item.isFailure()) {
+        batch.get(i).fail(item.getFailure());
+      } else {
+        batch.get(i).complete(item.getResponse());
+      }
+    }
+  }
+
+  private class PendingSearch {
+    private final SearchRequest request;
+    private final long enqueuedAt;
+    private final CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+
+    private PendingSearch(SearchRequest request, long enqueuedAt) {
+      this.request = request;
+      this.enqueuedAt = enqueuedAt;
+    }
+
+    private void complete(SearchResponse response) {
+      responseExecutor.execute(() -> future.complete(response));
+    }
+
+    private void fail(Exception e) {
+      responseExecutor.execute(() -> future.completeExceptionally(e));
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import lombok.NonNull;
+import lombok.val;
+
+/**
+ * Single flight: a request identical to one still in flight waits for that one's response instead
+ * of being sent again. The entry is dropped as soon as the response arrives, so nothing is served
+ * after the fact, that is left to the result caches. Each caller gets its own copy of the shared
+ * future, so one caller cancelling does not fail the others. The request itself is cancelled once
+ * every caller has cancelled its copy.
+ */
+class RequestCoalescer {
+  // requests sent and not yet answered, keyed by what they ask of Elasticsearch
+  private final ConcurrentMap<String, SharedRequest<?>> inFlight = new ConcurrentHashMap<>();
+
+  @SuppressWarnings("unchecked")
+  <T> CompletableFuture<T> coalesce(
+      @NonNull String key, @NonNull Supplier<CompletableFuture<T>> request) {
+    while (true) {
+      val shared = new SharedRequest<T>(key);
+      val inFlightRequest = (SharedRequest<T>) inFlight.putIfAbsent(key, shared);
+      if (inFlightRequest == null) {
+        val response = shared.join();
+        shared.send(request);
+        return response;
+      }
+      val response = inFlightRequest.join();
+      if (response != null) {
+        return response;
+      }
+      // every caller of that one gave up on it, it is being cancelled
+      inFlight.remove(key, inFlightRequest);
+    }
+  }
+
+  int inFlightCount() {
+    return inFlight.size();
+  }
+
+  // package private so that tests can interleave join and send
+  class SharedRequest<T> {
+    private final String key;
+    private final CompletableFuture<T> response = new CompletableFuture<>();
+
+    // guarded by this
+    private int waiting;
+    private boolean abandoned;
+    private CompletableFuture<T> sent;
+
+    SharedRequest(String key) {
+      this.key = key;
+    }
+
+    /** @return a copy of the response for one more caller, or null once abandoned */
+    synchronized CompletableFuture<T> join() {
+      if (abandoned) {
+        return null;
+      }
+      waiting++;
+      val copy = response.copy();
+      copy.whenComplete(
+          (value, e) -> {
+            if (copy.isCancelled()) {
+              leave();
+            }
+          });
+      return copy;
+    }
+
+    void send(Supplier<CompletableFuture<T>> request) {
+      final CompletableFuture<T> future;
+      try {
+        future = request.get();
+      } catch (RuntimeException e) {
+        inFlight.remove(key, this);
+        response.completeExceptionally(e);
+        return;
+      }
+      future.whenComplete(
+          (value, e) -> {
+            inFlight.remove(key, this);
+            if (e != null) {
+              response.completeExceptionally(e);
+            } else {
+              response.complete(value);
+            }
+          });
+      final boolean cancel;
+      synchronized (this) {
+        sent = future;
+        cancel = abandoned;
+      }
+      if (cancel) {
+        future.cancel(false);
+      }
+    }
+
+    private void leave() {
+      final CompletableFuture<T> toCancel;
+      synchronized (this) {
+        if (--waiting > 0 || response.isDone()) {
+          return;
+        }
+        abandoned = true;
+        toCancel = sent;
+      }
+      inFlight.remove(key, this);
+      if (toCancel != null) {
+        toCancel.cancel(false);
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import bio.overture.songsearch.config.ElasticsearchProperties.CircuitBreaker;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+/**
+ * Stops sending requests to an Elasticsearch that is failing most of them. Once the failure rate
+ * over the last slidingWindowSize requests reaches failureRateThreshold the breaker opens and
+ * requests are refused for openDuration. Then a single trial request is let through: if it succeeds
+ * the breaker closes, if it fails the breaker opens again. Only the trial's own outcome counts,
+ * responses to requests sent before the breaker opened are ignored until it closes.
+ */
+@Slf4j
+class SearchCircuitBreaker {
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  /** What tryAcquire allows, the request then reports its outcome or cancels with it */
+  enum Permit {
+    REFUSED,
+    REQUEST,
+    TRIAL
+  }
+
+  private final double failureRateThreshold;
+  private final int minimumRequests;
+  private final long openNanos;
+  private final LongSupplier nanoClock;
+
+  // guarded by this, outcomes of the latest requests as a ring, true for failures
+  private final boolean[] outcomes;
+  private int next;
+  private int recorded;
+  private int failures;
+  private State state = State.CLOSED;
+  private long openedAtNanos;
+  private boolean trialInFlight;
+
+  SearchCircuitBreaker(
+      double failureRateThreshold,
+      int slidingWindowSize,
+      int minimumRequests,
+      @NonNull Duration openDuration,
+      @NonNull LongSupplier nanoClock) {
+    this.failureRateThreshold = failureRateThreshold;
+    this.outcomes = new boolean[slidingWindowSize];
+    this.minimumRequests = Math.min(minimumRequests, slidingWindowSize);
+    this.openNanos = openDuration.toNanos();
+    this.nanoClock = nanoClock;
+  }
+
+  static SearchCircuitBreaker create(
+      @NonNull CircuitBreaker properties, @NonNull MeterRegistry meterRegistry) {
+    val circuitBreaker =
+        new SearchCircuitBreaker(
+            properties.getFailureRateThreshold(),
+            properties.getSlidingWindowSize(),
+            properties.getMinimumRequests(),
+            properties.getOpenDuration(),
+            System::nanoTime);
+    Gauge.builder(
+            "songsearch.es.circuit.open",
+            circuitBreaker,
+            breaker -> breaker.getState() == State.CLOSED ? 0 : 1)
+        .description("Whether requests to Elasticsearch are being refused")
+        .register(meterRegistry);
+    return circuitBreaker;
+  }
+
+  /** Whether a request may be sent, and whether it is the trial of a half open breaker. */
+  synchronized Permit tryAcquire() {
+    if (state == State.OPEN) {
+      if (nanoClock.getAsLong() - openedAtNanos < openNanos) {
+        return Permit.REFUSED;
+      }
+      state = State.HALF_OPEN;
+    }
+    if (state == State.HALF_OPEN) {
+      if (trialInFlight) {
+        return Permit.REFUSED;
+      }
+      trialInFlight = true;
+      return Permit.TRIAL;
+    }
+    return Permit.REQUEST;
+  }
+
+  synchronized void record(@NonNull Permit permit, boolean failed) {
+    if (permit == Permit.TRIAL) {
+      trialInFlight = false;
+      if (failed) {
+        open();
+      } else {
+        close();
+      }
+      return;
+    }
+    switch (state) {
+      case OPEN:
+      case HALF_OPEN:
+        // a request sent before the breaker opened, only the trial decides
+        return;
+      default:
+        if (recorded == outcomes.length) {
+          failures -= outcomes[next] ? 1 : 0;
+        } else {
+          recorded++;
+        }
+        outcomes[next] = failed;
+        failures += failed ? 1 : 0;
+        next = (next + 1) % outcomes.length;
+        if (recorded >= minimumRequests && failures >= failureRateThreshold * recorded) {
+          open();
+        }
+    }
+  }
+
+  /** Gives a permit back without an outcome, e.g. for a request never sent. */
+  synchronized void cancel(@NonNull Permit permit) {
+    if (permit == Permit.TRIAL) {
+      trialInFlight = false;
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  private void open() {
+    if (state != State.OPEN) {
+      log.warn(
+          String.format(
+              "Elasticsearch is failing, refusing requests for %d ms.", openNanos / 1_000_000));
+    }
+    state = State.OPEN;
+    openedAtNanos = nanoClock.getAsLong();
+  }
+
+  private void close() {
+    log.info("Elasticsearch is answering again, sending requests.");
+    state = State.CLOSED;
+    next = 0;
+    recorded = 0;
+    failures = 0;
+  }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static bio.overture.songsearch.repository.SearchMetrics.SCROLL;
+import static bio.overture.songsearch.repository.SearchMetrics.SEARCH;
+import static java.util.stream.Collectors.joining;
+
+import bio.overture.songsearch.config.ElasticsearchProperties;
+import bio.overture.songsearch.config.ElasticsearchProperties.CircuitBreaker;
+import bio.overture.songsearch.config.ElasticsearchProperties.ConcurrencyLimit;
+import bio.overture.songsearch.config.ElasticsearchProperties.ResponseExecutor;
+import bio.overture.songsearch.config.ElasticsearchProperties.SearchBatching;
+import bio.overture.songsearch.utils.QueryOrigin;
+import bio.overture.songsearch.utils.SearchScope;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import javax.annotation.PreDestroy;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non blocking access to Elasticsearch shared by the repositories. Requests are sent with the
+ * async client so no thread waits on Elasticsearch, which lets graphql-java resolve independent
+ * fields concurrently.
+ */
+@Slf4j
+@Component
+public class SearchExecutor {
+  private static final int DEFAULT_RESPONSE_QUEUE_CAPACITY = 10_000;
+
+  private static final String SEARCH_TIMED_OUT =
+      "The search ran out of the time budget of this operation and its results are incomplete";
+
+  private final RestHighLevelClient client;
+  private final RequestOptions requestOptions;
+  private final SearchMetrics metrics;
+  private final SlowQueryLog slowQueryLog;
+
+  // The client calls listeners on its IO reactor threads, responses are handed off so that
+  // mapping hits to models never holds up other in-flight requests.
+  private final ExecutorService responseExecutor;
+
+  // null unless search batching is enabled
+  private final MultiSearchBatcher batcher;
+
+  private final SearchGuard guard;
+
+  private final RequestCoalescer coalescer = new RequestCoalescer();
+
+  @Autowired
+  public SearchExecutor(
+      @NonNull RestHighLevelClient client,
+      @NonNull RequestOptions requestOptions,
+      @NonNull ElasticsearchProperties properties,
+      @NonNull MeterRegistry meterRegistry,
+      @NonNull SlowQueryLog slowQueryLog) {
+    this.client = client;
+    this.requestOptions = requestOptions;
+    this.metrics = new SearchMetrics(meterRegistry);
+    this.slowQueryLog = slowQueryLog;
+    this.responseExecutor = createResponseExecutor(properties.getResponseExecutor());
+    this.batcher =
+        createBatcher(
+            client,
+            requestOptions,
+            properties.getSearchBatching(),
+            responseExecutor,
+            meterRegistry);
+    this.guard =
+        new SearchGuard(
+            createConcurrencyLimit(properties.getConcurrencyLimit(), meterRegistry),
+            createCircuitBreaker(properties.getCircuitBreaker(), meterRegistry),
+            metrics,
+            System::nanoTime);
+  }
+
+  private static ExecutorService createResponseExecutor(ResponseExecutor responseExecutor) {
+    val threads =
+        responseExecutor == null || responseExecutor.getThreads() == null
+            ? Runtime.getRuntime().availableProcessors()
+            : responseExecutor.getThreads();
+    val queueCapacity =
+        responseExecutor == null || responseExecutor.getQueueCapacity() == null
+            ? DEFAULT_RESPONSE_QUEUE_CAPACITY
+            : responseExecutor.getQueueCapacity();
+    val threadCount = new AtomicInteger();
+    return new ThreadPoolExecutor(
+        threads,
+        threads,
+        0,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity),
+        runnable -> {
+          val thread = new Thread(runnable, "es-response-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        // the IO thread handles it when the queue is full or after shutdown, none is ever dropped
+        (runnable, executor) -> runnable.run());
+  }
+
+  private static MultiSearchBatcher createBatcher(
+      RestHighLevelClient client,
+      RequestOptions requestOptions,
+      SearchBatching searchBatching,
+      Executor responseExecutor,
+      MeterRegistry meterRegistry) {
+    if (searchBatching == null || !Boolean.TRUE.equals(searchBatching.getEnabled())) {
+      return null;
+    }
+    log.info(
+        String.format(
+            "Batching searches into _msearch, up to %d searches or %s.",
+            searchBatching.getMaxBatchSize(), searchBatching.getWindow()));
+    return new MultiSearchBatcher(
+        client,
+        requestOptions,
+        searchBatching.getWindow(),
+        searchBatching.getMaxBatchSize(),
+        responseExecutor,
+        meterRegistry);
+  }
+
+  private static AdaptiveConcurrencyLimit createConcurrencyLimit(
+      ConcurrencyLimit concurrencyLimit, MeterRegistry meterRegistry) {
+    if (concurrencyLimit == null || !Boolean.TRUE.equals(concurrencyLimit.getEnabled())) {
+      return null;
+    }
+    log.info(
+        String.format(
+            "Limiting requests in flight to Elasticsearch, between %d and %d.",
+            concurrencyLimit.getMinLimit(), concurrencyLimit.getMaxLimit()));
+    return AdaptiveConcurrencyLimit.create(concurrencyLimit, meterRegistry);
+  }
+
+  private static SearchCircuitBreaker createCircuitBreaker(
+      CircuitBreaker circuitBreaker, MeterRegistry meterRegistry) {
+    if (circuitBreaker == null || !Boolean.TRUE.equals(circuitBreaker.getEnabled())) {
+      return null;
+    }
+    return SearchCircuitBreaker.create(circuitBreaker, meterRegistry);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    if (batcher != null) {
+      batcher.shutdown();
+    }
+    responseExecutor.shutdown();
+  }
+
+  /**
+   * Within a {@link SearchScope} the search gets what is left of the operation's budget as its
+   * timeout, or is refused when nothing is left, and it is cancelled with the request. A search
+   * that timed out fails unless the scope allows partial results, Elasticsearch would otherwise
+   * return the hits found so far as if they were all of them. Cancelling the returned future
+   * cancels the search once no other caller waits for it.
+   */
+  public CompletableFuture<SearchResponse> search(@NonNull SearchRequest searchRequest) {
+    val scope = SearchScope.current();
+    if (scope != null) {
+      if (scope.remainingMillis() == 0) {
+        return budgetExhausted();
+      }
+      searchRequest.allowPartialSearchResults(scope.isAllowPartialResults());
+    }
+    final CompletableFuture<SearchResponse> response;
+    if (searchRequest.scroll() != null) {
+      // a scroll context belongs to the one consumer that pages through it
+      response = guard.guarded(() -> send(searchRequest));
+    } else {
+      response =
+          coalescer.coalesce(
+              "search|" + searchKey(searchRequest), () -> guard.guarded(() -> send(searchRequest)));
+    }
+    return registered(scope, mapped(response, r -> requireComplete(searchRequest, r)));
+  }
+
+  public CompletableFuture<MultiSearchResponse> multiSearch(
+      @NonNull MultiSearchRequest multiSearchRequest) {
+    val scope = SearchScope.current();
+    if (scope != null) {
+      if (scope.remainingMillis() == 0) {
+        return budgetExhausted();
+      }
+      multiSearchRequest
+          .requests()
+          .forEach(request -> request.allowPartialSearchResults(scope.isAllowPartialResults()));
+    }
+    val key =
+        multiSearchRequest.requests().stream()
+            .map(SearchExecutor::searchKey)
+            .collect(joining("\n", "msearch|", ""));
+    val response = coalescer.coalesce(key, () -> guard.guarded(() -> send(multiSearchRequest)));
+    return registered(scope, mapped(response, r -> requireComplete(multiSearchRequest, r)));
+  }
+
+  private static SearchResponse requireComplete(
+      SearchRequest searchRequest, SearchResponse response) {
+    if (isIncomplete(searchRequest, response)) {
+      throw new ElasticsearchUnavailableException(
+          ElasticsearchUnavailableException.BUDGET_EXHAUSTED, SEARCH_TIMED_OUT);
+    }
+    return response;
+  }
+
+  // a timed out item fails on its own, like an item Elasticsearch failed
+  private static MultiSearchResponse requireComplete(
+      MultiSearchRequest multiSearchRequest, MultiSearchResponse response) {
+    val requests = multiSearchRequest.requests();
+    val items = response.getResponses();
+    if (IntStream.range(0, items.length)
+        .noneMatch(i -> isIncomplete(requests.get(i), items[i].getResponse()))) {
+      return response;
+    }
+    val checkedItems = new MultiSearchResponse.Item[items.length];
+    for (int i = 0; i < items.length; i++) {
+      checkedItems[i] =
+          isIncomplete(requests.get(i), items[i].getResponse())
+              ? new MultiSearchResponse.Item(
+                  null,
+                  new ElasticsearchUnavailableException(
+                      ElasticsearchUnavailableException.BUDGET_EXHAUSTED, SEARCH_TIMED_OUT))
+              : items[i];
+    }
+    return new MultiSearchResponse(checkedItems, response.getTook().millis());
+  }
+
+  private static boolean isIncomplete(SearchRequest searchRequest, SearchResponse response) {
+    return response != null
+        && response.isTimedOut()
+        && !Boolean.TRUE.equals(searchRequest.allowPartialSearchResults());
+  }
+
+  // like thenApply, except that cancelling the result cancels the source as well
+  private static <T, U> CompletableFuture<U> mapped(
+      CompletableFuture<T> source, Function<T, U> mapper) {
+    val result = source.thenApply(mapper);
+    result.whenComplete(
+        (value, e) -> {
+          if (result.isCancelled()) {
+            source.cancel(false);
+          }
+        });
+    return result;
+  }
+
+  private CompletableFuture<SearchResponse> send(SearchRequest searchRequest) {
+    val start = System.nanoTime();
+    // the origin and the budget are only known on the thread that sends the search
+    val origin = QueryOrigin.current();
+    withTimeout(searchRequest, SearchScope.current());
+    final CompletableFuture<SearchResponse> future;
+    if (batcher != null && searchRequest.scroll() == null) {
+      // a batched search goes out with others in one _msearch, it cannot be cancelled alone
+      future = batcher.submit(searchRequest);
+    } else {
+      future = new CompletableFuture<>();
+      cancelling(future, client.searchAsync(searchRequest, requestOptions, completing(future)));
+    }
+    future.whenComplete(
+        (response, e) -> {
+          metrics.recordSearch(SEARCH, searchRequest, start, response, e);
+          if (e == null && searchRequest.scroll() == null) {
+            slowQueryLog.record(
+                origin, searchRequest, System.nanoTime() - start, response, this::profile);
+          }
+        });
+    return future;
+  }
+
+  /**
+   * Sends a slow search again for the slow query log, like any other search within the scope the
+   * log gives it. Returns null while the circuit breaker is not closed or the concurrency limit is
+   * reached, profiling is left out when Elasticsearch has nothing to spare.
+   */
+  private CompletableFuture<SearchResponse> profile(SearchRequest profileRequest) {
+    return guard.hasRoomToSpare() ? search(profileRequest) : null;
+  }
+
+  private CompletableFuture<MultiSearchResponse> send(MultiSearchRequest multiSearchRequest) {
+    val start = System.nanoTime();
+    val scope = SearchScope.current();
+    multiSearchRequest.requests().forEach(request -> withTimeout(request, scope));
+    final CompletableFuture<MultiSearchResponse> future = new CompletableFuture<>();
+    cancelling(future, client.msearchAsync(multiSearchRequest, requestOptions, completing(future)));
+    future.whenComplete(
+        (response, e) -> metrics.recordMultiSearch(multiSearchRequest, start, response, e));
+    return future;
+  }
+
+  // Set on the request that is sent, after it was keyed, so callers with different budgets still
+  // share it. Callers joining it later wait as long as the one that sent it.
+  private static void withTimeout(SearchRequest searchRequest, SearchScope scope) {
+    if (scope != null && searchRequest.source() != null) {
+      searchRequest.source().timeout(TimeValue.timeValueMillis(scope.remainingMillis()));
+    }
+  }
+
+  private <T> CompletableFuture<T> budgetExhausted() {
+    return rejected(
+        ElasticsearchUnavailableException.BUDGET_EXHAUSTED,
+        "The time budget of this operation ran out before the search was sent");
+  }
+
+  private static <T> CompletableFuture<T> registered(
+      SearchScope scope, CompletableFuture<T> response) {
+    if (scope != null) {
+      scope.register(response);
+    }
+    return response;
+  }
+
+  // The client aborts the http request, which makes Elasticsearch cancel the search task.
+  private static void cancelling(CompletableFuture<?> future, Cancellable cancellable) {
+    future.whenComplete(
+        (response, e) -> {
+          if (future.isCancelled()) {
+            cancellable.cancel();
+          }
+        });
+  }
+
+  private <T> CompletableFuture<T> rejected(String reason, String message) {
+    metrics.recordRejection(reason);
+    return CompletableFuture.failedFuture(new ElasticsearchUnavailableException(reason, message));
+  }
+
+  // everything that changes what Elasticsearch answers, the source is compared as compact json
+  private static String searchKey(SearchRequest searchRequest) {
+    val source = searchRequest.source() == null ? "" : Strings.toString(searchRequest.source());
+    return String.join(",", searchRequest.indices())
+        + "|"
+        + searchRequest.requestCache()
+        + "|"
+        + searchRequest.allowPartialSearchResults()
+        + "|"
+        + source;
+  }
+
+  public CompletableFuture<SearchResponse> scroll(@NonNull SearchScrollRequest scrollRequest) {
+    return registered(SearchScope.current(), guard.guarded(() -> send(scrollRequest)));
+  }
+
+  private CompletableFuture<SearchResponse> send(SearchScrollRequest scrollRequest) {
+    val start = System.nanoTime();
+    final CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+    cancelling(future, client.scrollAsync(scrollRequest, requestOptions, completing(future)));
+    future.whenComplete((response, e) -> metrics.recordSearch(SCROLL, null, start, response, e));
+    return future;
+  }
+
+  // not guarded, it frees resources on an Elasticsearch that may be struggling
+  public CompletableFuture<ClearScrollResponse> clearScroll(
+      @NonNull ClearScrollRequest clearScrollRequest) {
+    val start = System.nanoTime();
+    final CompletableFuture<ClearScrollResponse> future = new CompletableFuture<>();
+    client.clearScrollAsync(clearScrollRequest, requestOptions, completing(future));
+    return future.whenComplete((response, e) -> metrics.recordClearScroll(start, e));
+  }
+
+  /**
+   * Streams every hit of a search by scrolling through it one page at a time. The next page is
+   * only fetched once the subscriber has requested past the current one, so at most a couple of
+   * pages are held in memory however large the result is. The scroll context is cleared when the
+   * stream completes, fails or is cancelled. Every page is sent in the {@link SearchScope} current
+   * when the stream was created.
+   */
+  public Flux<SearchHit> scrollHits(
+      @NonNull SearchRequest searchRequest, @NonNull String keepAlive) {
+    searchRequest.scroll(keepAlive);
+    val scope = SearchScope.current();
+    val scrollId = new AtomicReference<String>();
+    return toMono(() -> SearchScope.supplyIn(scope, () -> search(searchRequest)))
+        .expand(response -> nextScrollPage(response, keepAlive, scope))
+        .doOnNext(response -> scrollId.set(response.getScrollId()))
+        .takeWhile(response -> response.getHits().getHits().length > 0)
+        .concatMapIterable(SearchResponse::getHits, 1)
+        .doFinally(signal -> clearScroll(scrollId.get()));
+  }
+
+  private Mono<SearchResponse> nextScrollPage(
+      SearchResponse response, String keepAlive, SearchScope scope) {
+    if (response.getHits().getHits().length == 0) {
+      return Mono.empty();
+    }
+    val scrollRequest = new SearchScrollRequest(response.getScrollId()).scroll(keepAlive);
+    return toMono(() -> SearchScope.supplyIn(scope, () -> scroll(scrollRequest)));
+  }
+
+  // the future is cancelled along with the subscription, which cancels the request
+  private static <T> Mono<T> toMono(Supplier<CompletableFuture<T>> request) {
+    return Mono.defer(
+        () -> {
+          val future = request.get();
+          return Mono.fromFuture(future).doOnCancel(() -> future.cancel(false));
+        });
+  }
+
+  private void clearScroll(String scrollId) {
+    if (scrollId == null) {
+      return;
+    }
+    val clearScrollRequest = new ClearScrollRequest();
+    clearScrollRequest.addScrollId(scrollId);
+    clearScroll(clearScrollRequest)
+        .exceptionally(
+            e -> {
+              log.warn("Failed to clear scroll context, it will expire on its own", e);
+              return null;
+            });
+  }
+
+  private <T> ActionListener<T> completing(CompletableFuture<T> future) {
+    return new ActionListener<>() {
+      @Override
+      public void onResponse(T response) {
+        responseExecutor.execute(() -> future.complete(response));
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        responseExecutor.execute(() -> future.completeExceptionally(e));
+      }
+    };
+  }
+}
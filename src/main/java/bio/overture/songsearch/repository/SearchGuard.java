@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import lombok.NonNull;
+import lombok.val;
+import org.elasticsearch.ElasticsearchException;
+
+/**
+ * Sends a request only if the circuit breaker and the concurrency limit let it through, otherwise
+ * fails it right away with an {@link ElasticsearchUnavailableException}. The outcome of the request
+ * is reported back to both, a cancelled request gives its permits back without one.
+ */
+class SearchGuard {
+  // null unless enabled
+  private final AdaptiveConcurrencyLimit concurrencyLimit;
+  private final SearchCircuitBreaker circuitBreaker;
+
+  private final SearchMetrics metrics;
+  private final LongSupplier nanoClock;
+
+  SearchGuard(
+      AdaptiveConcurrencyLimit concurrencyLimit,
+      SearchCircuitBreaker circuitBreaker,
+      @NonNull SearchMetrics metrics,
+      @NonNull LongSupplier nanoClock) {
+    this.concurrencyLimit = concurrencyLimit;
+    this.circuitBreaker = circuitBreaker;
+    this.metrics = metrics;
+    this.nanoClock = nanoClock;
+  }
+
+  <T> CompletableFuture<T> guarded(@NonNull Supplier<CompletableFuture<T>> request) {
+    val permit = circuitBreaker == null ? null : circuitBreaker.tryAcquire();
+    if (permit == SearchCircuitBreaker.Permit.REFUSED) {
+      return rejected(
+          ElasticsearchUnavailableException.CIRCUIT_OPEN,
+          "Elasticsearch is failing, requests are refused for a moment, retry later");
+    }
+    if (concurrencyLimit != null && !concurrencyLimit.tryAcquire()) {
+      if (circuitBreaker != null) {
+        circuitBreaker.cancel(permit);
+      }
+      return rejected(
+          ElasticsearchUnavailableException.OVERLOADED,
+          "Elasticsearch is overloaded, too many requests in flight, retry later");
+    }
+
+    val start = nanoClock.getAsLong();
+    final CompletableFuture<T> future;
+    try {
+      future = request.get();
+    } catch (RuntimeException e) {
+      // not sent, nothing learnt about Elasticsearch
+      cancel(permit);
+      throw e;
+    }
+    future.whenComplete(
+        (response, e) -> {
+          if (e != null && isCancellation(e)) {
+            // dropped by the caller, its latency says nothing and a trial has to be tried again
+            cancel(permit);
+            return;
+          }
+          val failed = e != null && isElasticsearchFailure(e);
+          if (concurrencyLimit != null) {
+            concurrencyLimit.release(start, failed);
+          }
+          if (circuitBreaker != null) {
+            circuitBreaker.record(permit, failed);
+          }
+        });
+    return future;
+  }
+
+  /** @return whether a request sent now would go through with room to spare */
+  boolean hasRoomToSpare() {
+    return (circuitBreaker == null
+            || circuitBreaker.getState() == SearchCircuitBreaker.State.CLOSED)
+        && (concurrencyLimit == null || !concurrencyLimit.isSaturated());
+  }
+
+  private void cancel(SearchCircuitBreaker.Permit permit) {
+    if (concurrencyLimit != null) {
+      concurrencyLimit.cancel();
+    }
+    if (circuitBreaker != null) {
+      circuitBreaker.cancel(permit);
+    }
+  }
+
+  private <T> CompletableFuture<T> rejected(String reason, String message) {
+    metrics.recordRejection(reason);
+    return CompletableFuture.failedFuture(new ElasticsearchUnavailableException(reason, message));
+  }
+
+  private static boolean isCancellation(Throwable e) {
+    return unwrapped(e) instanceof CancellationException;
+  }
+
+  // failures that tell Elasticsearch is unwell, rather than that the request was wrong
+  private static boolean isElasticsearchFailure(Throwable e) {
+    val cause = unwrapped(e);
+    if (cause instanceof ElasticsearchUnavailableException) {
+      return false;
+    }
+    if (cause instanceof ElasticsearchException) {
+      val status = ((ElasticsearchException) cause).status().getStatus();
+      return status >= 500 || status == 429;
+    }
+    return true;
+  }
+
+  private static Throwable unwrapped(Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+  }
+}
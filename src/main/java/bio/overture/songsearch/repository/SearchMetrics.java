@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.joining;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Arrays;
+import lombok.NonNull;
+import lombok.val;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+
+/**
+ * What each Elasticsearch call cost, tagged by operation, index and outcome: the round trip as
+ * seen by the service next to the took Elasticsearch reports, so time spent in the cluster can be
+ * told apart from time spent on the wire and in the client. Response sizes are recorded by the
+ * client itself, see ElasticsearchConfig.
+ */
+class SearchMetrics {
+  static final String SEARCH = "search";
+  static final String MULTI_SEARCH = "msearch";
+  static final String SCROLL = "scroll";
+  static final String CLEAR_SCROLL = "clear_scroll";
+
+  // scroll requests only carry the scroll id
+  private static final String NO_INDEX = "none";
+
+  private final MeterRegistry meterRegistry;
+  private final DistributionSummary fanOut;
+
+  SearchMetrics(@NonNull MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+    this.fanOut =
+        DistributionSummary.builder("songsearch.es.msearch.fanout")
+            .description("Searches in one _msearch")
+            .publishPercentiles(0.5, 0.99)
+            .register(meterRegistry);
+  }
+
+  void recordSearch(
+      String operation,
+      SearchRequest searchRequest,
+      long startNanos,
+      SearchResponse response,
+      Throwable error) {
+    val index = searchRequest == null ? NO_INDEX : indexOf(searchRequest);
+    recordRequest(operation, index, startNanos, error);
+    if (response != null) {
+      recordResponse(operation, index, response);
+    }
+  }
+
+  void recordMultiSearch(
+      MultiSearchRequest multiSearchRequest,
+      long startNanos,
+      MultiSearchResponse response,
+      Throwable error) {
+    val requests = multiSearchRequest.requests();
+    fanOut.record(requests.size());
+    val indices =
+        requests.stream()
+            .flatMap(searchRequest -> Arrays.stream(searchRequest.indices()))
+            .distinct()
+            .sorted()
+            .collect(joining(","));
+    recordRequest(MULTI_SEARCH, indices, startNanos, error);
+    if (response == null) {
+      return;
+    }
+    val items = response.getResponses();
+    for (int i = 0; i < items.length && i < requests.size(); i++) {
+      if (!items[i].isFailure()) {
+        recordResponse(MULTI_SEARCH, indexOf(requests.get(i)), items[i].getResponse());
+      }
+    }
+  }
+
+  void recordClearScroll(long startNanos, Throwable error) {
+    recordRequest(CLEAR_SCROLL, NO_INDEX, startNanos, error);
+  }
+
+  void recordRejection(String reason) {
+    Counter.builder("songsearch.es.rejected")
+        .description("Requests to Elasticsearch refused without being sent")
+        .tag("reason", reason)
+        .register(meterRegistry)
+        .increment();
+  }
+
+  private void recordRequest(String operation, String index, long startNanos, Throwable error) {
+    Timer.builder("songsearch.es.requests")
+        .description("Round trip of Elasticsearch requests, as seen by the service")
+        .tag("operation", operation)
+        .tag("index", index)
+        .tag("outcome", error == null ? "success" : "failure")
+        .publishPercentileHistogram()
+        .register(meterRegistry)
+        .record(System.nanoTime() - startNanos, NANOSECONDS);
+  }
+
+  private void recordResponse(String operation, String index, SearchResponse response) {
+    Timer.builder("songsearch.es.took")
+        .description("Time Elasticsearch reports it spent on a search")
+        .tag("operation", operation)
+        .tag("index", index)
+        .publishPercentileHistogram()
+        .register(meterRegistry)
+        .record(response.getTook().millis(), MILLISECONDS);
+    DistributionSummary.builder("songsearch.es.hits")
+        .description("Hits returned by a search")
+        .tag("operation", operation)
+        .tag("index", index)
+        .publishPercentiles(0.5, 0.99)
+        .register(meterRegistry)
+        .record(response.getHits().getHits().length);
+  }
+
+  private static String indexOf(SearchRequest searchRequest) {
+    return String.join(",", searchRequest.indices());
+  }
+}
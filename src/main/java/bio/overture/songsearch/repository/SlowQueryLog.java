@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import bio.overture.songsearch.config.SongSearchProperties;
+import bio.overture.songsearch.config.SongSearchProperties.SlowQueries;
+import bio.overture.songsearch.utils.SearchScope;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.profile.SearchProfileShardResults;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Logs searches slower than the configured threshold with everything needed to reproduce them:
+ * the GraphQL operation that sent it, the compiled query, wall time against the took Elasticsearch
+ * reports, and the hit count. A sampled fraction is sent again with profiling on, by the caller so
+ * that it goes through the same guards as any search, and the shard level breakdown is kept with
+ * the latest slow searches for the slowqueries actuator endpoint.
+ */
+@Slf4j
+@Component
+public class SlowQueryLog {
+  private static final Duration DEFAULT_PROFILE_TIMEOUT = Duration.ofSeconds(10);
+
+  private final boolean enabled;
+  private final long thresholdNanos;
+  private final double profileSampleRate;
+  private final long profileTimeoutNanos;
+  private final int bufferSize;
+
+  // guarded by itself, the latest slow searches, oldest first
+  private final Deque<SlowQuery> latest = new ArrayDeque<>();
+
+  @Autowired
+  public SlowQueryLog(@NonNull SongSearchProperties properties) {
+    val slowQueries = properties.getSlowQueries();
+    this.enabled = slowQueries != null && Boolean.TRUE.equals(slowQueries.getEnabled());
+    this.thresholdNanos = enabled ? slowQueries.getThreshold().toNanos() : Long.MAX_VALUE;
+    this.profileSampleRate = enabled ? rateOf(slowQueries) : 0;
+    this.profileTimeoutNanos =
+        enabled && slowQueries.getProfileTimeout() != null
+            ? slowQueries.getProfileTimeout().toNanos()
+            : DEFAULT_PROFILE_TIMEOUT.toNanos();
+    this.bufferSize =
+        enabled && slowQueries.getBufferSize() != null ? slowQueries.getBufferSize() : 0;
+  }
+
+  private static double rateOf(SlowQueries slowQueries) {
+    return slowQueries.getProfileSampleRate() == null ? 0 : slowQueries.getProfileSampleRate();
+  }
+
+  /**
+   * @param profiler sends a search again, or returns null when Elasticsearch has no room for it
+   */
+  void record(
+      String origin,
+      SearchRequest searchRequest,
+      long wallNanos,
+      SearchResponse response,
+      Function<SearchRequest, CompletableFuture<SearchResponse>> profiler) {
+    if (!enabled
+        || wallNanos < thresholdNanos
+        || searchRequest.source() == null
+        // a profiled search is slow again, it was recorded when first sent
+        || searchRequest.source().profile()) {
+      return;
+    }
+    val query = Strings.toString(searchRequest.source());
+    val slowQuery =
+        new SlowQuery(
+            Instant.now(),
+            origin,
+            String.join(",", searchRequest.indices()),
+            query,
+            NANOSECONDS.toMillis(wallNanos),
+            response.getTook().millis(),
+            response.getHits().getHits().length,
+            null);
+    log.warn(
+        "Slow search from {} on {}: {} ms wall, {} ms took, {} hits, query {}",
+        slowQuery.getOrigin(),
+        slowQuery.getIndex(),
+        slowQuery.getWallMillis(),
+        slowQuery.getTookMillis(),
+        slowQuery.getHits(),
+        query);
+
+    if (ThreadLocalRandom.current().nextDouble() < profileSampleRate) {
+      profile(searchRequest, slowQuery, profiler);
+    } else {
+      keep(slowQuery);
+    }
+  }
+
+  public List<SlowQuery> latest() {
+    synchronized (latest) {
+      return List.copyOf(latest);
+    }
+  }
+
+  // the search is sent again as is with profile on and a budget of its own, the caller already has
+  // its response
+  private void profile(
+      SearchRequest searchRequest,
+      SlowQuery slowQuery,
+      Function<SearchRequest, CompletableFuture<SearchResponse>> profiler) {
+    val profileRequest =
+        new SearchRequest(searchRequest.indices())
+            .source(searchRequest.source().shallowCopy().profile(true));
+    val scope = new SearchScope(System.nanoTime() + profileTimeoutNanos, false, null);
+    final CompletableFuture<SearchResponse> profiled;
+    try {
+      profiled = SearchScope.supplyIn(scope, () -> profiler.apply(profileRequest));
+    } catch (RuntimeException e) {
+      log.warn("Failed to profile slow search", e);
+      keep(slowQuery);
+      return;
+    }
+    if (profiled == null) {
+      log.debug("Skipped profiling slow search, Elasticsearch has no room to spare for it");
+      keep(slowQuery);
+      return;
+    }
+    profiled.whenComplete(
+        (response, e) -> {
+          if (e != null) {
+            log.warn("Failed to profile slow search", e);
+            keep(slowQuery);
+          } else {
+            keep(slowQuery.withProfile(profileOf(response)));
+          }
+        });
+  }
+
+  private static Map<String, Object> profileOf(SearchResponse response) {
+    val shardResults = new SearchProfileShardResults(response.getProfileResults());
+    val json = Strings.toString(shardResults);
+    return XContentHelper.convertToMap(new BytesArray(json), true, XContentType.JSON).v2();
+  }
+
+  private void keep(SlowQuery slowQuery) {
+    synchronized (latest) {
+      latest.addLast(slowQuery);
+      while (latest.size() > bufferSize) {
+        latest.removeFirst();
+      }
+    }
+  }
+
+  @Value
+  public static class SlowQuery {
+    Instant at;
+    String origin;
+    String index;
+    String query;
+    long wallMillis;
+    long tookMillis;
+    long hits;
+    // shard level breakdown, only for the sampled searches
+    Map<String, Object> profile;
+
+    SlowQuery withProfile(Map<String, Object> profile) {
+      return new SlowQuery(at, origin, index, query, wallMillis, tookMillis, hits, profile);
+    }
+  }
+}
@@ -23,132 +23,450 @@ import static bio.overture.songsearch.config.constants.EsDefaults.ES_PAGE_DEFAUL
 import static bio.overture.songsearch.config.constants.SearchFields.*;
 import static bio.overture.songsearch.model.enums.SpecimenType.NORMAL;
 import static bio.overture.songsearch.model.enums.SpecimenType.TUMOUR;
+import static bio.overture.songsearch.service.SearchResultCache.cachedResult;
+import static bio.overture.songsearch.service.SearchResultCache.tag;
+import static bio.overture.songsearch.service.SearchResultCache.withTagSources;
+import static bio.overture.songsearch.utils.CursorUtils.decodeCursor;
+import static bio.overture.songsearch.utils.CursorUtils.encodeCursor;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.esAggregationToFacetResult;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.parseSource;
+import static bio.overture.songsearch.utils.SearchScope.bound;
 import static java.util.Collections.emptyList;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.toUnmodifiableList;
+import static java.util.stream.Collectors.toUnmodifiableMap;
 
 import bio.overture.songsearch.model.*;
 import bio.overture.songsearch.repository.AnalysisRepository;
+import bio.overture.songsearch.service.SearchResultCache.SearchKey;
+import bio.overture.songsearch.utils.SearchScope;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.collect.ImmutableMap;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import lombok.Value;
 import lombok.val;
 import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.search.SearchHit;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class AnalysisService {
+  // tags of a cached search result, the fields are fetched whatever the selection
+  private static final String[] TAG_SOURCES = {"analysis_id", "study_id", "workflow.run_id"};
+
+  // just enough of an analysis to pair it, see FlatDonorSample
+  private static final String[] PAIRING_SOURCES = {
+    "analysis_id",
+    "donors.specimens.tumour_normal_designation",
+    "donors.specimens.samples.submitter_sample_id",
+    "donors.specimens.samples.matched_normal_submitter_sample_id"
+  };
+
+  // a study's pairs are paged through one request per page, so its pairing index is kept for as
+  // long as that takes instead of being rebuilt for every page; pairs may be this stale
+  private static final Duration PAIRING_INDEX_TTL = Duration.ofMinutes(1);
+  private static final int PAIRING_INDEX_MAX_ENTRIES = 20;
 
   private final AnalysisRepository analysisRepository;
+  private final SearchResultCache<SearchResult<Analysis>> searchResultCache;
+  private final AsyncCache<PairingKey, PairingIndex> pairingIndexes =
+      Caffeine.newBuilder()
+          .maximumSize(PAIRING_INDEX_MAX_ENTRIES)
+          .expireAfterWrite(PAIRING_INDEX_TTL)
+          .buildAsync();
 
   @Autowired
-  public AnalysisService(AnalysisRepository analysisRepository) {
+  public AnalysisService(
+      AnalysisRepository analysisRepository,
+      SearchResultCache<SearchResult<Analysis>> searchResultCache) {
     this.analysisRepository = analysisRepository;
+    this.searchResultCache = searchResultCache;
   }
 
   private static Analysis hitToAnalysis(SearchHit hit) {
-    val sourceMap = hit.getSourceAsMap();
-    return Analysis.parse(sourceMap);
+    // no _source is fetched when none of the document fields are selected
+    if (!hit.hasSource()) {
+      return new Analysis();
+    }
+    return parseSource(hit, Analysis::parse);
   }
 
-  public SearchResult<Analysis> searchAnalyses(
-      Map<String, Object> filter, Map<String, Integer> page, List<Sort> sorts) {
-    val response = analysisRepository.getAnalyses(filter, page, sorts);
-    val responseSearchHits = response.getHits();
+  private static List<Analysis> hitsToAnalyses(SearchResponse response) {
+    val hitStream = Arrays.stream(response.getHits().getHits());
+    return hitStream.map(AnalysisService::hitToAnalysis).collect(toUnmodifiableList());
+  }
 
-    val totalHits = responseSearchHits.getTotalHits().value;
+  // the hits of every item, one failed item fails them all
+  private static List<Analysis> itemsToAnalyses(MultiSearchResponse multiSearchResponse) {
+    val analyses = new ArrayList<Analysis>();
+    for (MultiSearchResponse.Item item : multiSearchResponse.getResponses()) {
+      if (item.isFailure()) {
+        throw new CompletionException(item.getFailure());
+      }
+      analyses.addAll(hitsToAnalyses(item.getResponse()));
+    }
+    return analyses;
+  }
+
+  // a page that came back full may be followed by more hits
+  private static String nextCursor(SearchHit[] hits, int size) {
+    if (hits.length == 0 || hits.length < size) {
+      return null;
+    }
+    return encodeCursor(hits[hits.length - 1].getSortValues());
+  }
+
+  public CompletableFuture<SearchResult<Analysis>> searchAnalyses(
+      Map<String, Object> filter,
+      Map<String, Integer> page,
+      List<Sort> sorts,
+      String[] sourceIncludes,
+      String after) {
+    val searchAfter = after == null ? null : decodeCursor(after);
     val from = page.getOrDefault("from", ES_PAGE_DEFAULT_FROM);
     val size = page.getOrDefault("size", ES_PAGE_DEFAULT_SIZE);
+    val key = SearchKey.of(filter, from, size, sorts, sourceIncludes, after);
+    val fetchedSources = withTagSources(sourceIncludes, TAG_SOURCES);
+    return searchResultCache.get(
+        key,
+        () ->
+            analysisRepository
+                .getAnalyses(filter, page, sorts, fetchedSources, searchAfter)
+                .thenApply(
+                    response -> {
+                      val result = toSearchResult(response, from, size);
+                      return cachedResult(result, response, tagsOf(result.getContent()));
+                    }));
+  }
 
+  private static SearchResult<Analysis> toSearchResult(
+      SearchResponse response, int from, int size) {
+    val responseSearchHits = response.getHits();
+    val totalHits = responseSearchHits.getTotalHits().value;
     val analyses =
         Arrays.stream(responseSearchHits.getHits())
             .map(AnalysisService::hitToAnalysis)
             .collect(toUnmodifiableList());
     val nextFrom = (totalHits - from) / size > 0;
-    return new SearchResult<>(analyses, nextFrom, totalHits);
+    val nextCursor = nextCursor(responseSearchHits.getHits(), size);
+    return new SearchResult<>(analyses, nextFrom, totalHits, nextCursor);
   }
 
-  public AggregationResult aggregateAnalyses(Map<String, Object> filter) {
-    val response = analysisRepository.getAnalyses(filter, Map.of(), List.of());
-    val responseSearchHits = response.getHits();
-    val totalHits = responseSearchHits.getTotalHits().value;
-    return new AggregationResult(totalHits);
+  private static Set<String> tagsOf(List<Analysis> analyses) {
+    val tags = new HashSet<String>();
+    for (Analysis analysis : analyses) {
+      Optional.ofNullable(analysis.getAnalysisId()).ifPresent(id -> tags.add(tag(ANALYSIS_ID, id)));
+      Optional.ofNullable(analysis.getStudyId()).ifPresent(id -> tags.add(tag(STUDY_ID, id)));
+      Optional.ofNullable(analysis.getWorkflow())
+          .map(Workflow::getRunId)
+          .ifPresent(id -> tags.add(tag(RUN_ID, id)));
+    }
+    return tags;
   }
 
-  public List<Analysis> getAnalyses(Map<String, Object> filter, Map<String, Integer> page) {
-    val response = analysisRepository.getAnalyses(filter, page);
-    val hitStream = Arrays.stream(response.getHits().getHits());
-    return hitStream.map(AnalysisService::hitToAnalysis).collect(toUnmodifiableList());
+  public CompletableFuture<AggregationResult> aggregateAnalyses(
+      Map<String, Object> filter, List<Facet> facets) {
+    return analysisRepository
+        .countAnalyses(filter, facets)
+        .thenApply(
+            response -> {
+              val responseSearchHits = response.getHits();
+              val totalHits = responseSearchHits.getTotalHits().value;
+              val facetResults =
+                  facets.stream()
+                      .map(facet -> esAggregationToFacetResult(facet, response.getAggregations()))
+                      .collect(toUnmodifiableList());
+              return new AggregationResult(totalHits, facetResults);
+            });
   }
 
-  public Analysis getAnalysisById(String analysisId) {
-    val response = analysisRepository.getAnalyses(Map.of(ANALYSIS_ID, analysisId), null);
-    val runOpt =
-        Arrays.stream(response.getHits().getHits()).map(AnalysisService::hitToAnalysis).findFirst();
-    return runOpt.orElse(null);
+  public CompletableFuture<List<Analysis>> getAnalyses(
+      Map<String, Object> filter, Map<String, Integer> page) {
+    return analysisRepository.getAnalyses(filter, page).thenApply(AnalysisService::hitsToAnalyses);
   }
 
-  public List<Analysis> getAnalysesByRunId(String runId) {
-    val response = analysisRepository.getAnalyses(Map.of(RUN_ID, runId), null);
-    val hitStream = Arrays.stream(response.getHits().getHits());
-    return hitStream.map(AnalysisService::hitToAnalysis).collect(toUnmodifiableList());
+  public CompletableFuture<Analysis> getAnalysisById(String analysisId) {
+    return analysisRepository
+        .getAnalyses(Map.of(ANALYSIS_ID, analysisId), null)
+        .thenApply(
+            response ->
+                Arrays.stream(response.getHits().getHits())
+                    .map(AnalysisService::hitToAnalysis)
+                    .findFirst()
+                    .orElse(null));
   }
 
-  public List<Analysis> getAnalyses(List<Map<String, Object>> multipleFilters) {
-    val multiSearchResponse = analysisRepository.getAnalyses(multipleFilters, null);
-    return Arrays.stream(multiSearchResponse.getResponses())
-        .map(MultiSearchResponse.Item::getResponse)
-        .map(
-            res ->
-                Arrays.stream(res.getHits().getHits())
-                    .map(AnalysisService::hitToAnalysis)
-                    .findFirst())
-        .filter(Optional::isPresent)
-        .map(Optional::get)
-        .collect(toUnmodifiableList());
+  public CompletableFuture<Map<String, Analysis>> getAnalysesByIds(
+      Collection<String> analysisIds) {
+    return getAnalysesByIds(Map.of(), analysisIds);
   }
 
-  public List<SampleMatchedAnalysisPair> getSampleMatchedAnalysisPairs(String analysisId) {
-    val analysisFromId = getAnalysisById(analysisId);
-    val flattenedSamples = getFlattenedSamplesFromAnalysis(analysisFromId);
-    val experimentalStrategy = analysisFromId.getExperiment().get("experimental_strategy");
+  public CompletableFuture<Map<String, Analysis>> getAnalysesByIds(
+      Map<String, Object> filter, Collection<String> analysisIds) {
+    if (analysisIds.isEmpty()) {
+      return completedFuture(Map.of());
+    }
+    return analysisRepository
+        .getAnalysesByIds(filter, List.copyOf(analysisIds))
+        .thenApply(
+            multiSearchResponse ->
+                itemsToAnalyses(multiSearchResponse).stream()
+                    .collect(
+                        toUnmodifiableMap(
+                            Analysis::getAnalysisId, identity(), (first, second) -> first)));
+  }
+
+  public CompletableFuture<Map<String, List<Analysis>>> getAnalysesByRunIds(
+      Map<String, Object> filter, Collection<String> runIds) {
+    if (runIds.isEmpty()) {
+      return completedFuture(Map.of());
+    }
+    val runIdList = List.copyOf(runIds);
+    return analysisRepository
+        .getAnalysesByRunIds(filter, runIdList)
+        .thenApply(
+            multiSearchResponse -> {
+              // msearch answers in request order, so item i holds the analyses of runIdList[i]
+              val items = multiSearchResponse.getResponses();
+              val analysesByRunId = new HashMap<String, List<Analysis>>();
+              for (int i = 0; i < runIdList.size(); i++) {
+                if (items[i].isFailure()) {
+                  throw new CompletionException(items[i].getFailure());
+                }
+                analysesByRunId.put(runIdList.get(i), hitsToAnalyses(items[i].getResponse()));
+              }
+              return Collections.unmodifiableMap(analysesByRunId);
+            });
+  }
+
+  public CompletableFuture<List<Analysis>> getAnalysesByRunId(String runId) {
+    return analysisRepository
+        .getAnalyses(Map.of(RUN_ID, runId), null)
+        .thenApply(AnalysisService::hitsToAnalyses);
+  }
+
+  public CompletableFuture<List<Analysis>> getAnalyses(List<Map<String, Object>> multipleFilters) {
+    return analysisRepository
+        .getAnalyses(multipleFilters, null)
+        .thenApply(
+            multiSearchResponse ->
+                Arrays.stream(multiSearchResponse.getResponses())
+                    .map(MultiSearchResponse.Item::getResponse)
+                    .map(
+                        res ->
+                            Arrays.stream(res.getHits().getHits())
+                                .map(AnalysisService::hitToAnalysis)
+                                .findFirst())
+                    .filter(Optional::isPresent)
+                    .map(Optional::get)
+                    .collect(toUnmodifiableList()));
+  }
+
+  public CompletableFuture<List<SampleMatchedAnalysisPair>> getSampleMatchedAnalysisPairs(
+      String analysisId) {
+    return getAnalysisById(analysisId)
+        .thenCompose(bound((Analysis analysis) -> getSampleMatchedAnalysisPairs(analysis)));
+  }
+
+  /**
+   * Pairs for several analyses at once. The analyses are fetched in one search and all of their
+   * counterparts in one _msearch, rather than two sequential searches per analysis. A pair reached
+   * from both its tumour and its normal analysis is returned once.
+   */
+  public CompletableFuture<List<SampleMatchedAnalysisPair>> getSampleMatchedAnalysisPairs(
+      Collection<String> analysisIds) {
+    return getAnalysesByIds(analysisIds)
+        .thenCompose(
+            bound(
+                (Map<String, Analysis> analysesById) ->
+                    pairWithCounterparts(analysesById.values())));
+  }
+
+  private CompletableFuture<List<SampleMatchedAnalysisPair>> getSampleMatchedAnalysisPairs(
+      Analysis analysisFromId) {
+    val filter = counterpartFilter(analysisFromId);
 
     // short circuit return if can't find sample matched pairs for analysisFromId
-    if (experimentalStrategy == null || flattenedSamples.size() != 1) {
-      return emptyList();
+    if (filter == null) {
+      return completedFuture(emptyList());
     }
 
-    val flattenedSampleOfInterest = flattenedSamples.get(0);
-    val tumourNormalDesignation = flattenedSampleOfInterest.getTumourNormalDesignation();
+    return getAnalyses(filter, null)
+        .thenApply(
+            analyses ->
+                analyses.stream()
+                    .map(a -> pairOf(analysisFromId, a))
+                    .collect(toUnmodifiableList()));
+  }
 
-    val filter = ImmutableMap.<String, Object>builder();
+  private CompletableFuture<List<SampleMatchedAnalysisPair>> pairWithCounterparts(
+      Collection<Analysis> analysesFromIds) {
+    val pairable = new ArrayList<Analysis>();
+    val filters = new ArrayList<Map<String, Object>>();
+    for (Analysis analysisFromId : analysesFromIds) {
+      val filter = counterpartFilter(analysisFromId);
+      if (filter != null) {
+        pairable.add(analysisFromId);
+        filters.add(filter);
+      }
+    }
+    if (pairable.isEmpty()) {
+      return completedFuture(emptyList());
+    }
+
+    return analysisRepository
+        .getAnalyses(filters, null)
+        .thenApply(
+            multiSearchResponse -> {
+              // msearch answers in request order, so item i holds the counterparts of pairable[i]
+              val items = multiSearchResponse.getResponses();
+              val pairs = new LinkedHashMap<String, SampleMatchedAnalysisPair>();
+              for (int i = 0; i < pairable.size(); i++) {
+                if (items[i].isFailure()) {
+                  throw new CompletionException(items[i].getFailure());
+                }
+                for (SearchHit hit : items[i].getResponse().getHits()) {
+                  val pair = pairOf(pairable.get(i), hitToAnalysis(hit));
+                  pairs.putIfAbsent(
+                      pair.getNormalSampleAnalysis().getAnalysisId()
+                          + "/"
+                          + pair.getTumourSampleAnalysis().getAnalysisId(),
+                      pair);
+                }
+              }
+              return List.copyOf(pairs.values());
+            });
+  }
 
-    if (flattenedSampleOfInterest
-        .getTumourNormalDesignation()
-        .equalsIgnoreCase(TUMOUR.toString())) {
-      filter.put(
-          SUBMITTER_SAMPLE_ID, flattenedSampleOfInterest.getMatchedNormalSubmitterSampleId());
-    } else if (flattenedSampleOfInterest
-        .getTumourNormalDesignation()
-        .equalsIgnoreCase(NORMAL.toString())) {
-      filter.put(
-          MATCHED_NORMAL_SUBMITTER_SAMPLE_ID, flattenedSampleOfInterest.getSubmitterSampleId());
+  /**
+   * Every tumour/normal pair of a study, a page at a time. The study's analyses are scrolled
+   * through once with only the fields needed for pairing, and tumour samples are joined to normal
+   * samples in memory. Only analysis ids are held on to, and only the analyses of the requested
+   * page are fetched in full. The pairs are indexed once for all the pages requested within
+   * PAIRING_INDEX_TTL.
+   */
+  public CompletableFuture<SearchResult<SampleMatchedAnalysisPair>>
+      getStudySampleMatchedAnalysisPairs(
+          String studyId,
+          String analysisType,
+          String experimentalStrategy,
+          Map<String, Integer> page) {
+    val from = page.getOrDefault("from", ES_PAGE_DEFAULT_FROM);
+    val size = page.getOrDefault("size", ES_PAGE_DEFAULT_SIZE);
+    val key = new PairingKey(studyId, analysisType, experimentalStrategy);
+    // shared by every request paging through the study, it is not cancelled with this one
+    return pairingIndexes
+        .get(key, (k, executor) -> SearchScope.detached(() -> buildPairingIndex(k)))
+        .thenCompose(
+            bound(
+                (PairingIndex index) -> {
+                  val pairCount = index.pairCount();
+                  val hasNextFrom = from + size < pairCount;
+                  return hydrate(index.page(from, size))
+                      .thenApply(pairs -> new SearchResult<>(pairs, hasNextFrom, pairCount));
+                }));
+  }
+
+  private CompletableFuture<PairingIndex> buildPairingIndex(PairingKey key) {
+    val filter =
+        Map.<String, Object>of(
+            STUDY_ID,
+            key.getStudyId(),
+            ANALYSIS_TYPE,
+            key.getAnalysisType(),
+            "experiment.experimental_strategy",
+            key.getExperimentalStrategy());
+    return analysisRepository
+        .scrollAnalyses(filter, PAIRING_SOURCES)
+        .map(AnalysisService::hitToAnalysis)
+        .reduceWith(PairingIndex::new, PairingIndex::add)
+        .map(PairingIndex::seal)
+        .toFuture();
+  }
+
+  private CompletableFuture<List<SampleMatchedAnalysisPair>> hydrate(List<IdPair> idPairs) {
+    val analysisIds = new HashSet<String>();
+    idPairs.forEach(
+        idPair -> {
+          analysisIds.add(idPair.getNormalAnalysisId());
+          analysisIds.add(idPair.getTumourAnalysisId());
+        });
+    return getAnalysesByIds(analysisIds)
+        .thenApply(
+            analysesById ->
+                idPairs.stream()
+                    // an analysis that left the index since the scroll is left out
+                    .filter(
+                        idPair ->
+                            analysesById.containsKey(idPair.getNormalAnalysisId())
+                                && analysesById.containsKey(idPair.getTumourAnalysisId()))
+                    .map(
+                        idPair ->
+                            new SampleMatchedAnalysisPair(
+                                analysesById.get(idPair.getNormalAnalysisId()),
+                                analysesById.get(idPair.getTumourAnalysisId())))
+                    .collect(toUnmodifiableList()));
+  }
+
+  /**
+   * Filter matching the analyses on the other side of analysisFromId's tumour/normal pair, null
+   * when analysisFromId can't be paired
+   */
+  private static Map<String, Object> counterpartFilter(Analysis analysisFromId) {
+    val flattenedSamples = getFlattenedSamplesFromAnalysis(analysisFromId);
+    val experimentalStrategy =
+        analysisFromId.getExperiment() == null
+            ? null
+            : analysisFromId.getExperiment().get("experimental_strategy");
+
+    if (experimentalStrategy == null
+        || analysisFromId.getAnalysisType() == null
+        || flattenedSamples.size() != 1) {
+      return null;
+    }
+
+    val flattenedSampleOfInterest = flattenedSamples.get(0);
+    val designation = flattenedSampleOfInterest.getTumourNormalDesignation();
+
+    final String counterpartField;
+    final String counterpartSampleId;
+    if (TUMOUR.toString().equalsIgnoreCase(designation)) {
+      counterpartField = SUBMITTER_SAMPLE_ID;
+      counterpartSampleId = flattenedSampleOfInterest.getMatchedNormalSubmitterSampleId();
+    } else if (NORMAL.toString().equalsIgnoreCase(designation)) {
+      counterpartField = MATCHED_NORMAL_SUBMITTER_SAMPLE_ID;
+      counterpartSampleId = flattenedSampleOfInterest.getSubmitterSampleId();
+    } else {
+      return null;
+    }
+    // a sample with no id to join on has no counterpart
+    if (counterpartSampleId == null) {
+      return null;
     }
 
+    val filter = ImmutableMap.<String, Object>builder();
+    filter.put(counterpartField, counterpartSampleId);
     filter.put(ANALYSIS_TYPE, analysisFromId.getAnalysisType());
     filter.put("experiment.experimental_strategy", experimentalStrategy);
+    return filter.build();
+  }
 
-    return getAnalyses(filter.build(), null).stream()
-        .map(
-            a ->
-                tumourNormalDesignation.equalsIgnoreCase(TUMOUR.toString())
-                    ? new SampleMatchedAnalysisPair(a, analysisFromId)
-                    : new SampleMatchedAnalysisPair(analysisFromId, a))
-        .collect(toUnmodifiableList());
+  private static SampleMatchedAnalysisPair pairOf(Analysis analysisFromId, Analysis counterpart) {
+    val tumourNormalDesignation =
+        getFlattenedSamplesFromAnalysis(analysisFromId).get(0).getTumourNormalDesignation();
+    return tumourNormalDesignation.equalsIgnoreCase(TUMOUR.toString())
+        ? new SampleMatchedAnalysisPair(counterpart, analysisFromId)
+        : new SampleMatchedAnalysisPair(analysisFromId, counterpart);
   }
 
-  private List<FlatDonorSample> getFlattenedSamplesFromAnalysis(Analysis analysis) {
+  static List<FlatDonorSample> getFlattenedSamplesFromAnalysis(Analysis analysis) {
     return analysis.getDonors().stream()
         .flatMap(
             d ->
@@ -174,4 +492,91 @@ public class AnalysisService {
       this.matchedNormalSubmitterSampleId = sample.getMatchedNormalSubmitterSampleId();
     }
   }
+
+  /**
+   * Hash join of tumour samples to normal samples on submitter_sample_id =
+   * matched_normal_submitter_sample_id, built up one analysis at a time. Analyses with other than
+   * exactly one sample, or whose sample is neither tumour nor normal or lacks the id to join on,
+   * can't be paired and are skipped, as for a single analysis. Once sealed it is only read, and is
+   * shared by concurrent requests.
+   */
+  static class PairingIndex {
+    private final Map<String, List<String>> normalAnalysisIdsBySampleId = new HashMap<>();
+    // sorted, so pages are stable from one request to the next
+    private final SortedMap<String, String> matchedNormalSampleIdByTumourId = new TreeMap<>();
+    private long pairCount;
+
+    PairingIndex add(Analysis analysis) {
+      val flattenedSamples = getFlattenedSamplesFromAnalysis(analysis);
+      if (analysis.getAnalysisId() == null || flattenedSamples.size() != 1) {
+        return this;
+      }
+      val sample = flattenedSamples.get(0);
+      val designation = sample.getTumourNormalDesignation();
+      if (TUMOUR.toString().equalsIgnoreCase(designation)) {
+        if (sample.getMatchedNormalSubmitterSampleId() != null) {
+          matchedNormalSampleIdByTumourId.put(
+              analysis.getAnalysisId(), sample.getMatchedNormalSubmitterSampleId());
+        }
+      } else if (NORMAL.toString().equalsIgnoreCase(designation)) {
+        if (sample.getSubmitterSampleId() != null) {
+          normalAnalysisIdsBySampleId
+              .computeIfAbsent(sample.getSubmitterSampleId(), sampleId -> new ArrayList<>())
+              .add(analysis.getAnalysisId());
+        }
+      }
+      return this;
+    }
+
+    PairingIndex seal() {
+      // sorted, so pages are stable from one request to the next
+      normalAnalysisIdsBySampleId.values().forEach(ids -> ids.sort(null));
+      pairCount =
+          matchedNormalSampleIdByTumourId.values().stream()
+              .mapToLong(sampleId -> normalsOf(sampleId).size())
+              .sum();
+      return this;
+    }
+
+    long pairCount() {
+      return pairCount;
+    }
+
+    List<IdPair> page(int from, int size) {
+      val page = new ArrayList<IdPair>(size);
+      int skip = from;
+      for (Map.Entry<String, String> tumour : matchedNormalSampleIdByTumourId.entrySet()) {
+        val normalAnalysisIds = normalsOf(tumour.getValue());
+        if (skip >= normalAnalysisIds.size()) {
+          skip -= normalAnalysisIds.size();
+          continue;
+        }
+        for (String normalAnalysisId : normalAnalysisIds.subList(skip, normalAnalysisIds.size())) {
+          if (page.size() == size) {
+            return page;
+          }
+          page.add(new IdPair(normalAnalysisId, tumour.getKey()));
+        }
+        skip = 0;
+      }
+      return page;
+    }
+
+    private List<String> normalsOf(String sampleId) {
+      return normalAnalysisIdsBySampleId.getOrDefault(sampleId, emptyList());
+    }
+  }
+
+  @Value
+  private static class PairingKey {
+    String studyId;
+    String analysisType;
+    String experimentalStrategy;
+  }
+
+  @Value
+  static class IdPair {
+    String normalAnalysisId;
+    String tumourAnalysisId;
+  }
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.service;
+
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.parseSource;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.joining;
+
+import bio.overture.songsearch.model.Analysis;
+import bio.overture.songsearch.model.Donor;
+import bio.overture.songsearch.model.File;
+import bio.overture.songsearch.model.enums.ExportFormat;
+import bio.overture.songsearch.repository.AnalysisRepository;
+import bio.overture.songsearch.repository.FileRepository;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import lombok.NonNull;
+import lombok.SneakyThrows;
+import lombok.val;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Streams whole result sets out of the indices. Hits are encoded one at a time as they come off
+ * the scroll, nothing is collected, so memory use does not depend on how many documents match.
+ */
+@Service
+public class ExportService {
+  private static final byte NEWLINE = '\n';
+
+  private static final List<String> FILE_TSV_HEADER =
+      List.of(
+          "object_id",
+          "study_id",
+          "analysis_id",
+          "file_name",
+          "file_type",
+          "data_type",
+          "file_access",
+          "size",
+          "md5sum");
+
+  private static final String[] FILE_TSV_SOURCE =
+      new String[] {
+        "object_id",
+        "study_id",
+        "analysis.analysis_id",
+        "file.name",
+        "file_type",
+        "data_type",
+        "file_access",
+        "file.size",
+        "file.md5sum"
+      };
+
+  private static final List<String> ANALYSIS_TSV_HEADER =
+      List.of(
+          "analysis_id",
+          "analysis_type",
+          "analysis_version",
+          "analysis_state",
+          "study_id",
+          "donor_ids",
+          "updated_at",
+          "published_at");
+
+  private static final String[] ANALYSIS_TSV_SOURCE =
+      new String[] {
+        "analysis_id",
+        "analysis_type",
+        "analysis_version",
+        "analysis_state",
+        "study_id",
+        "donors.donor_id",
+        "updated_at",
+        "published_at"
+      };
+
+  private final FileRepository fileRepository;
+  private final AnalysisRepository analysisRepository;
+
+  @Autowired
+  public ExportService(
+      @NonNull FileRepository fileRepository, @NonNull AnalysisRepository analysisRepository) {
+    this.fileRepository = fileRepository;
+    this.analysisRepository = analysisRepository;
+  }
+
+  /** @throws IllegalArgumentException for a filter field files can't be filtered on */
+  public Flux<DataBuffer> exportFiles(
+      Map<String, Object> filter, ExportFormat format, DataBufferFactory bufferFactory) {
+    requireKnownFields(filter, fileRepository.getFilterFields());
+    switch (format) {
+      case NDJSON:
+        return toNdjson(fileRepository.scrollFiles(filter, null), bufferFactory);
+      case TSV:
+        return toTsv(
+            fileRepository.scrollFiles(filter, FILE_TSV_SOURCE),
+            FILE_TSV_HEADER,
+            hit -> fileToRow(parseSource(hit, File::parse)),
+            bufferFactory);
+      default:
+        throw new IllegalArgumentException("Unsupported export format: " + format);
+    }
+  }
+
+  /** @throws IllegalArgumentException for a filter field analyses can't be filtered on */
+  public Flux<DataBuffer> exportAnalyses(
+      Map<String, Object> filter, ExportFormat format, DataBufferFactory bufferFactory) {
+    requireKnownFields(filter, analysisRepository.getFilterFields());
+    switch (format) {
+      case NDJSON:
+        return toNdjson(analysisRepository.scrollAnalyses(filter, null), bufferFactory);
+      case TSV:
+        return toTsv(
+            analysisRepository.scrollAnalyses(filter, ANALYSIS_TSV_SOURCE),
+            ANALYSIS_TSV_HEADER,
+            hit -> analysisToRow(parseSource(hit, Analysis::parse)),
+            bufferFactory);
+      default:
+        throw new IllegalArgumentException("Unsupported export format: " + format);
+    }
+  }
+
+  // an unknown field would be matched on a field of the same name, which matches nothing
+  private static void requireKnownFields(Map<String, Object> filter, Set<String> filterFields) {
+    val unknownFields = new TreeSet<>(filter.keySet());
+    unknownFields.removeAll(filterFields);
+    if (!unknownFields.isEmpty()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Unknown filter %s, the filters are %s", unknownFields, new TreeSet<>(filterFields)));
+    }
+  }
+
+  private static Flux<DataBuffer> toNdjson(Flux<SearchHit> hits, DataBufferFactory bufferFactory) {
+    return hits.map(
+        hit -> {
+          val source = compactSource(hit.getSourceRef());
+          return bufferFactory
+              .allocateBuffer(source.length + 1)
+              .write(source)
+              .write(NEWLINE);
+        });
+  }
+
+  private static Flux<DataBuffer> toTsv(
+      Flux<SearchHit> hits,
+      List<String> header,
+      Function<SearchHit, List<?>> hitToRow,
+      DataBufferFactory bufferFactory) {
+    return Mono.fromSupplier(() -> tsvLine(header, bufferFactory))
+        .concatWith(hits.map(hit -> tsvLine(hitToRow.apply(hit), bufferFactory)));
+  }
+
+  private static DataBuffer tsvLine(List<?> values, DataBufferFactory bufferFactory) {
+    val line = values.stream().map(ExportService::tsvValue).collect(joining("\t", "", "\n"));
+    return bufferFactory.wrap(line.getBytes(UTF_8));
+  }
+
+  // Tabs and line breaks inside a value would shift columns or rows, they are flattened to spaces
+  private static String tsvValue(Object value) {
+    return value == null ? "" : value.toString().replaceAll("[\t\r\n]", " ");
+  }
+
+  // NDJSON needs each document on a single line, _source is passed through untouched unless it
+  // was indexed pretty printed
+  @SneakyThrows
+  private static byte[] compactSource(BytesReference source) {
+    val bytes = BytesReference.toBytes(source);
+    for (byte b : bytes) {
+      if (b == NEWLINE) {
+        return XContentHelper.convertToJson(source, true, false, XContentType.JSON).getBytes(UTF_8);
+      }
+    }
+    return bytes;
+  }
+
+  private static List<?> fileToRow(File file) {
+    val fileMeta = Optional.ofNullable(file.getFile());
+    return Arrays.asList(
+        file.getObjectId(),
+        file.getStudyId(),
+        Optional.ofNullable(file.getAnalysis()).map(File.Analysis::getAnalysisId).orElse(null),
+        fileMeta.map(File.FileMeta::getName).orElse(null),
+        file.getFileType(),
+        file.getDataType(),
+        file.getFileAccess(),
+        fileMeta.map(File.FileMeta::getSize).orElse(null),
+        fileMeta.map(File.FileMeta::getMd5sum).orElse(null));
+  }
+
+  private static List<?> analysisToRow(Analysis analysis) {
+    val donorIds =
+        Optional.ofNullable(analysis.getDonors()).stream()
+            .flatMap(List::stream)
+            .map(Donor::getDonorId)
+            .filter(Objects::nonNull)
+            .collect(joining(","));
+    return Arrays.asList(
+        analysis.getAnalysisId(),
+        analysis.getAnalysisType(),
+        analysis.getAnalysisVersion(),
+        analysis.getAnalysisState(),
+        analysis.getStudyId(),
+        donorIds,
+        analysis.getUpdatedAt(),
+        analysis.getPublishedAt());
+  }
+}
@@ -20,67 +20,179 @@ package bio.overture.songsearch.service;
 
 import static bio.overture.songsearch.config.constants.EsDefaults.ES_PAGE_DEFAULT_FROM;
 import static bio.overture.songsearch.config.constants.EsDefaults.ES_PAGE_DEFAULT_SIZE;
+import static bio.overture.songsearch.config.constants.SearchFields.ANALYSIS_ID;
 import static bio.overture.songsearch.config.constants.SearchFields.FILE_OBJECT_ID;
+import static bio.overture.songsearch.config.constants.SearchFields.STUDY_ID;
+import static bio.overture.songsearch.service.SearchResultCache.cachedResult;
+import static bio.overture.songsearch.service.SearchResultCache.tag;
+import static bio.overture.songsearch.service.SearchResultCache.withTagSources;
+import static bio.overture.songsearch.utils.CursorUtils.decodeCursor;
+import static bio.overture.songsearch.utils.CursorUtils.encodeCursor;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.esAggregationToFacetResult;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.parseSource;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.toUnmodifiableList;
+import static java.util.stream.Collectors.toUnmodifiableMap;
 
 import bio.overture.songsearch.model.*;
 import bio.overture.songsearch.repository.FileRepository;
+import bio.overture.songsearch.service.SearchResultCache.SearchKey;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import lombok.val;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.search.SearchHit;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 @Service
 public class FileService {
+  // tags of a cached search result, the fields are fetched whatever the selection
+  private static final String[] TAG_SOURCES = {"object_id", "study_id", "analysis.analysis_id"};
+
   private final FileRepository fileRepository;
+  private final SearchResultCache<SearchResult<File>> searchResultCache;
 
   @Autowired
-  public FileService(FileRepository fileRepository) {
+  public FileService(
+      FileRepository fileRepository, SearchResultCache<SearchResult<File>> searchResultCache) {
     this.fileRepository = fileRepository;
+    this.searchResultCache = searchResultCache;
   }
 
   private static File hitToFile(SearchHit hit) {
-    val sourceMap = hit.getSourceAsMap();
-    return File.parse(sourceMap);
+    // no _source is fetched when none of the document fields are selected
+    if (!hit.hasSource()) {
+      return new File();
+    }
+    return parseSource(hit, File::parse);
   }
 
-  public SearchResult<File> searchFiles(
-      Map<String, Object> filter, Map<String, Integer> page, List<Sort> sorts) {
-    val response = fileRepository.getFiles(filter, page, sorts);
-    val responseSearchHits = response.getHits();
+  private static List<File> hitsToFiles(SearchResponse response) {
+    val hitStream = Arrays.stream(response.getHits().getHits());
+    return hitStream.map(FileService::hitToFile).collect(toUnmodifiableList());
+  }
 
-    val totalHits = responseSearchHits.getTotalHits().value;
+  // the hits of every item, one failed item fails them all
+  private static List<File> itemsToFiles(MultiSearchResponse multiSearchResponse) {
+    val files = new ArrayList<File>();
+    for (MultiSearchResponse.Item item : multiSearchResponse.getResponses()) {
+      if (item.isFailure()) {
+        throw new CompletionException(item.getFailure());
+      }
+      files.addAll(hitsToFiles(item.getResponse()));
+    }
+    return files;
+  }
+
+  // a page that came back full may be followed by more hits
+  private static String nextCursor(SearchHit[] hits, int size) {
+    if (hits.length == 0 || hits.length < size) {
+      return null;
+    }
+    return encodeCursor(hits[hits.length - 1].getSortValues());
+  }
+
+  public CompletableFuture<SearchResult<File>> searchFiles(
+      Map<String, Object> filter,
+      Map<String, Integer> page,
+      List<Sort> sorts,
+      String[] sourceIncludes,
+      String after) {
+    val searchAfter = after == null ? null : decodeCursor(after);
     val from = page.getOrDefault("from", ES_PAGE_DEFAULT_FROM);
     val size = page.getOrDefault("size", ES_PAGE_DEFAULT_SIZE);
+    val key = SearchKey.of(filter, from, size, sorts, sourceIncludes, after);
+    val fetchedSources = withTagSources(sourceIncludes, TAG_SOURCES);
+    return searchResultCache.get(
+        key,
+        () ->
+            fileRepository
+                .getFiles(filter, page, sorts, fetchedSources, searchAfter)
+                .thenApply(
+                    response -> {
+                      val result = toSearchResult(response, from, size);
+                      return cachedResult(result, response, tagsOf(result.getContent()));
+                    }));
+  }
 
-    val analyses =
+  private static SearchResult<File> toSearchResult(SearchResponse response, int from, int size) {
+    val responseSearchHits = response.getHits();
+    val totalHits = responseSearchHits.getTotalHits().value;
+    val files =
         Arrays.stream(responseSearchHits.getHits())
             .map(FileService::hitToFile)
             .collect(toUnmodifiableList());
     val nextFrom = (totalHits - from) / size > 0;
-    return new SearchResult<>(analyses, nextFrom, totalHits);
+    val nextCursor = nextCursor(responseSearchHits.getHits(), size);
+    return new SearchResult<>(files, nextFrom, totalHits, nextCursor);
   }
 
-  public AggregationResult aggregateFiles(Map<String, Object> filter) {
-    val response = fileRepository.getFiles(filter, Map.of(), List.of());
-    val responseSearchHits = response.getHits();
-    val totalHits = responseSearchHits.getTotalHits().value;
-    return new AggregationResult(totalHits);
+  private static Set<String> tagsOf(List<File> files) {
+    val tags = new HashSet<String>();
+    for (File file : files) {
+      Optional.ofNullable(file.getObjectId()).ifPresent(id -> tags.add(tag(FILE_OBJECT_ID, id)));
+      Optional.ofNullable(file.getStudyId()).ifPresent(id -> tags.add(tag(STUDY_ID, id)));
+      Optional.ofNullable(file.getAnalysis())
+          .map(File.Analysis::getAnalysisId)
+          .ifPresent(id -> tags.add(tag(ANALYSIS_ID, id)));
+    }
+    return tags;
   }
 
-  public List<File> getFiles(Map<String, Object> filter, Map<String, Integer> page) {
-    val response = fileRepository.getFiles(filter, page);
-    val hitStream = Arrays.stream(response.getHits().getHits());
-    return hitStream.map(FileService::hitToFile).collect(toUnmodifiableList());
+  public CompletableFuture<AggregationResult> aggregateFiles(
+      Map<String, Object> filter, List<Facet> facets) {
+    return fileRepository
+        .countFiles(filter, facets)
+        .thenApply(
+            response -> {
+              val responseSearchHits = response.getHits();
+              val totalHits = responseSearchHits.getTotalHits().value;
+              val facetResults =
+                  facets.stream()
+                      .map(facet -> esAggregationToFacetResult(facet, response.getAggregations()))
+                      .collect(toUnmodifiableList());
+              return new AggregationResult(totalHits, facetResults);
+            });
+  }
+
+  public CompletableFuture<List<File>> getFiles(
+      Map<String, Object> filter, Map<String, Integer> page) {
+    return fileRepository.getFiles(filter, page).thenApply(FileService::hitsToFiles);
+  }
+
+  public CompletableFuture<File> getFileByObjectId(String fileId) {
+    return fileRepository
+        .getFiles(Map.of(FILE_OBJECT_ID, fileId), null)
+        .thenApply(
+            response ->
+                Arrays.stream(response.getHits().getHits())
+                    .map(FileService::hitToFile)
+                    .findFirst()
+                    .orElse(null));
   }
 
-  public File getFileByObjectId(String fileId) {
-    val response = fileRepository.getFiles(Map.of(FILE_OBJECT_ID, fileId), null);
-    val runOpt =
-        Arrays.stream(response.getHits().getHits()).map(FileService::hitToFile).findFirst();
-    return runOpt.orElse(null);
+  public CompletableFuture<Map<String, File>> getFilesByObjectIds(Collection<String> objectIds) {
+    if (objectIds.isEmpty()) {
+      return completedFuture(Map.of());
+    }
+    return fileRepository
+        .getFilesByObjectIds(List.copyOf(objectIds))
+        .thenApply(
+            multiSearchResponse ->
+                itemsToFiles(multiSearchResponse).stream()
+                    .collect(
+                        toUnmodifiableMap(
+                            File::getObjectId, identity(), (first, second) -> first)));
   }
 }
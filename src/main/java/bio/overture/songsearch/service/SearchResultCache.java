@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.service;
+
+import static bio.overture.songsearch.config.constants.SearchFields.ANALYSIS_ID;
+import static bio.overture.songsearch.config.constants.SearchFields.FILE_OBJECT_ID;
+import static bio.overture.songsearch.config.constants.SearchFields.RUN_ID;
+import static bio.overture.songsearch.config.constants.SearchFields.STUDY_ID;
+import static java.util.stream.Collectors.toUnmodifiableList;
+import static java.util.stream.Collectors.toUnmodifiableSet;
+
+import bio.overture.songsearch.config.SongSearchProperties.CacheSpec;
+import bio.overture.songsearch.model.Sort;
+import bio.overture.songsearch.utils.SearchScope;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.val;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Bounded in-process cache of search results, for the identical searches the gateway and UI keep
+ * repeating. Eviction is Caffeine's W-TinyLFU, weighted by the approximate size of each result in
+ * bytes, and entries expire a fixed time after they are loaded. Concurrent misses on the same key
+ * share a single load, failed loads are not cached.
+ *
+ * <p>Entries are tagged with the ids of the documents in their result (e.g. {@code
+ * studyId:TEST-CA}) so that they can be evicted as soon as one of those documents changes, see
+ * {@link SearchResultCacheInvalidator}.
+ */
+public class SearchResultCache<V> {
+  // rough per-hit cost of the model objects on top of the _source they are parsed from
+  private static final int HIT_OVERHEAD_BYTES = 512;
+  private static final long MAX_WEIGHT = Integer.MAX_VALUE;
+
+  // filter fields that tags are made from, a filter pinning one of them only matches documents
+  // carrying that tag
+  private static final Set<String> TAGGED_FIELDS =
+      Set.of(ANALYSIS_ID, STUDY_ID, RUN_ID, FILE_OBJECT_ID);
+
+  private final AsyncCache<SearchKey, CachedResult<V>> cache;
+
+  private SearchResultCache(AsyncCache<SearchKey, CachedResult<V>> cache) {
+    this.cache = cache;
+  }
+
+  public static <V> SearchResultCache<V> disabled() {
+    return new SearchResultCache<>(null);
+  }
+
+  public static <V> SearchResultCache<V> create(
+      @NonNull String name, @NonNull CacheSpec spec, @NonNull MeterRegistry meterRegistry) {
+    final AsyncCache<SearchKey, CachedResult<V>> cache =
+        Caffeine.newBuilder()
+            .maximumWeight(spec.getMaximumBytes())
+            .weigher(
+                (SearchKey key, CachedResult<V> value) -> (int) Math.min(value.bytes, MAX_WEIGHT))
+            .expireAfterWrite(spec.getTtl())
+            .recordStats()
+            .buildAsync();
+    CaffeineCacheMetrics.monitor(meterRegistry, cache.synchronous(), name);
+    return new SearchResultCache<>(cache);
+  }
+
+  /**
+   * @param loader searches when the key is not cached, or always when the cache is disabled
+   */
+  public CompletableFuture<V> get(
+      @NonNull SearchKey key, @NonNull Supplier<CompletableFuture<CachedResult<V>>> loader) {
+    if (cache == null) {
+      return loader.get().thenApply(CachedResult::getValue);
+    }
+    // a load is shared by every request missing the key meanwhile, it is not cancelled with the
+    // one that started it
+    val result = cache.get(key, (k, executor) -> SearchScope.detached(loader));
+    result.thenAccept(
+        cachedResult -> {
+          if (!cachedResult.isComplete()) {
+            cache.asMap().remove(key, result);
+          }
+        });
+    return result.thenApply(CachedResult::getValue);
+  }
+
+  public void invalidateAll() {
+    if (cache != null) {
+      cache.synchronous().invalidateAll();
+    }
+  }
+
+  /**
+   * Evicts the entries that may be stale after the tagged documents changed: those with one of the
+   * changed documents in their result, those whose filter pins one of the changed ids, and those
+   * whose filter pins none since a change anywhere may add to their result. Loads still in flight
+   * are evicted as well, they may have read the documents before the change.
+   *
+   * @return the number of entries evicted
+   */
+  public int invalidate(@NonNull Set<String> changedTags) {
+    if (cache == null) {
+      return 0;
+    }
+    int evicted = 0;
+    val entries = cache.asMap();
+    for (val entry : entries.entrySet()) {
+      if (isStale(entry.getKey(), entry.getValue(), changedTags)
+          && entries.remove(entry.getKey(), entry.getValue())) {
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  private static <V> boolean isStale(
+      SearchKey key, CompletableFuture<CachedResult<V>> result, Set<String> changedTags) {
+    if (!result.isDone() || result.isCompletedExceptionally()) {
+      return true;
+    }
+    val pinnedTags =
+        key.getFilter().entrySet().stream()
+            .filter(filter -> TAGGED_FIELDS.contains(filter.getKey()))
+            .map(filter -> tag(filter.getKey(), filter.getValue()))
+            .collect(toUnmodifiableSet());
+    return pinnedTags.isEmpty()
+        || pinnedTags.stream().anyMatch(changedTags::contains)
+        || result.join().getTags().stream().anyMatch(changedTags::contains);
+  }
+
+  public static String tag(@NonNull String fieldName, @NonNull String value) {
+    return fieldName + ":" + value;
+  }
+
+  /**
+   * Adds the fields a result is tagged from to the _source fields of a search, so that entries can
+   * be tagged whatever fields were selected
+   */
+  public static String[] withTagSources(String[] sourceIncludes, String... tagSources) {
+    if (sourceIncludes == null) {
+      return null;
+    }
+    return Stream.concat(Arrays.stream(sourceIncludes), Arrays.stream(tagSources))
+        .distinct()
+        .sorted()
+        .toArray(String[]::new);
+  }
+
+  /**
+   * Weighs the result of a search by the size of the documents it was built from
+   *
+   * @param tags tags of the documents in the result, see {@link #tag(String, String)}
+   */
+  public static <V> CachedResult<V> cachedResult(
+      V value, SearchResponse response, Set<String> tags) {
+    long bytes = 0;
+    for (SearchHit hit : response.getHits().getHits()) {
+      bytes += HIT_OVERHEAD_BYTES + (hit.hasSource() ? hit.getSourceRef().length() : 0);
+    }
+    return new CachedResult<>(value, bytes, tags, !response.isTimedOut());
+  }
+
+  @Value
+  public static class CachedResult<V> {
+    V value;
+    long bytes;
+    Set<String> tags;
+    // partial results of a search that timed out are served once and not cached
+    boolean complete;
+  }
+
+  /**
+   * Canonical form of the arguments of a search. Filters are keyed in sorted order so that the
+   * order they were given in does not matter, sorts keep their order since it is significant.
+   */
+  @Value
+  public static class SearchKey {
+    ImmutableSortedMap<String, String> filter;
+    int from;
+    int size;
+    List<String> sorts;
+    List<String> sourceIncludes;
+    String after;
+
+    public static SearchKey of(
+        Map<String, Object> filter,
+        int from,
+        int size,
+        List<Sort> sorts,
+        String[] sourceIncludes,
+        String after) {
+      val canonicalFilter = ImmutableSortedMap.<String, String>naturalOrder();
+      if (filter != null) {
+        filter.forEach((fieldName, value) -> canonicalFilter.put(fieldName, value.toString()));
+      }
+      val canonicalSorts =
+          sorts == null
+              ? List.<String>of()
+              : sorts.stream()
+                  .map(sort -> sort.getFieldName() + ":" + sort.getOrder().toLowerCase())
+                  .collect(toUnmodifiableList());
+      val canonicalSourceIncludes =
+          sourceIncludes == null
+              ? null
+              : ImmutableList.sortedCopyOf(Arrays.asList(sourceIncludes));
+      return new SearchKey(
+          canonicalFilter.build(), from, size, canonicalSorts, canonicalSourceIncludes, after);
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.service;
+
+import static bio.overture.songsearch.config.constants.SearchFields.ANALYSIS_ID;
+import static bio.overture.songsearch.config.constants.SearchFields.FILE_OBJECT_ID;
+import static bio.overture.songsearch.config.constants.SearchFields.RUN_ID;
+import static bio.overture.songsearch.config.constants.SearchFields.STUDY_ID;
+import static bio.overture.songsearch.service.SearchResultCache.tag;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.parseSource;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import bio.overture.songsearch.config.SongSearchProperties;
+import bio.overture.songsearch.config.SongSearchProperties.Invalidation;
+import bio.overture.songsearch.model.Analysis;
+import bio.overture.songsearch.model.Workflow;
+import bio.overture.songsearch.repository.AnalysisRepository;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the result caches fresh by following updated_at on the analysis index. Every poll asks for
+ * the analyses updated since the last one and evicts only the entries those analyses can affect,
+ * by their analysisId, studyId, runId and the objectIds of their files. Analysis entries can then
+ * live for a long TTL without serving stale results for longer than about a poll interval.
+ *
+ * <p>File documents are built from their analysis, so the same changes evict file entries too, but
+ * they have no updated_at of their own and may be written to the file index after the poll that
+ * saw their analysis. Such an entry stays stale until the files TTL, which is kept short for that
+ * reason. Deleted documents are not seen by polling either, they drop out with the TTL.
+ */
+@Slf4j
+@Component
+public class SearchResultCacheInvalidator {
+  private static final int PAGE_SIZE = 1_000;
+  private static final int MAX_PAGES_PER_POLL = 100;
+  // past this many changes in one poll, evicting everything is cheaper than matching tags
+  private static final int MAX_TRACKED_CHANGES = 10_000;
+  private static final String[] CHANGE_SOURCES = {
+    "analysis_id", "study_id", "workflow.run_id", "files.object_id"
+  };
+
+  private final AnalysisRepository analysisRepository;
+  private final List<SearchResultCache<?>> caches;
+  private final Invalidation invalidation;
+
+  // only touched by the polling thread
+  private final Map<String, Long> recentChanges = new HashMap<>();
+  private Long watermark;
+
+  private ScheduledExecutorService scheduler;
+
+  @Autowired
+  public SearchResultCacheInvalidator(
+      @NonNull AnalysisRepository analysisRepository,
+      @NonNull List<SearchResultCache<?>> caches,
+      @NonNull SongSearchProperties properties) {
+    this.analysisRepository = analysisRepository;
+    this.caches = caches;
+    val resultCache = properties.getResultCache();
+    this.invalidation =
+        resultCache == null || !Boolean.TRUE.equals(resultCache.getEnabled())
+            ? null
+            : resultCache.getInvalidation();
+  }
+
+  @PostConstruct
+  public void start() {
+    if (invalidation == null || !Boolean.TRUE.equals(invalidation.getEnabled())) {
+      log.info("Result cache invalidation is disabled, cached results only expire with their TTL.");
+      return;
+    }
+    scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              val thread = new Thread(runnable, "result-cache-invalidator");
+              thread.setDaemon(true);
+              return thread;
+            });
+    val interval = invalidation.getPollInterval().toMillis();
+    scheduler.scheduleWithFixedDelay(this::poll, 0, interval, MILLISECONDS);
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  void poll() {
+    // an exception would cancel the schedule, and a missed poll may have missed changes
+    try {
+      if (watermark == null) {
+        startFromLatestUpdate();
+      } else {
+        evictChanges();
+      }
+    } catch (Exception e) {
+      log.warn("Failed to poll for updated analyses, evicting all cached results.", e);
+      caches.forEach(SearchResultCache::invalidateAll);
+    }
+  }
+
+  private void startFromLatestUpdate() {
+    val hits = analysisRepository.getLatestUpdatedAnalysis().join().getHits().getHits();
+    watermark = hits.length == 0 ? 0L : updatedAt(hits[0]);
+    // anything cached before the watermark was known may already be stale
+    caches.forEach(SearchResultCache::invalidateAll);
+    log.info("Following analysis updates from updated_at " + watermark);
+  }
+
+  private void evictChanges() {
+    val overlapMillis = invalidation.getOverlap().toMillis();
+    val changedTags = new HashSet<String>();
+    long latest = watermark;
+    int changes = 0;
+    boolean complete = false;
+    Object[] searchAfter = null;
+
+    val since = watermark - overlapMillis;
+    for (int pages = 0; pages < MAX_PAGES_PER_POLL && !complete; pages++) {
+      val hits =
+          analysisRepository
+              .getAnalysesUpdatedSince(since, PAGE_SIZE, CHANGE_SOURCES, searchAfter)
+              .join()
+              .getHits()
+              .getHits();
+      for (SearchHit hit : hits) {
+        val updatedAt = updatedAt(hit);
+        latest = Math.max(latest, updatedAt);
+        val analysis = parseSource(hit, Analysis::parse);
+        // the overlap returns the same versions poll after poll, they were evicted the first time
+        val previous = recentChanges.put(analysis.getAnalysisId(), updatedAt);
+        if (previous != null && previous == updatedAt) {
+          continue;
+        }
+        if (++changes <= MAX_TRACKED_CHANGES) {
+          changedTags.addAll(tagsOf(analysis));
+        }
+      }
+      complete = hits.length < PAGE_SIZE;
+      if (!complete) {
+        searchAfter = hits[hits.length - 1].getSortValues();
+      }
+    }
+
+    if (!complete || changes > MAX_TRACKED_CHANGES) {
+      log.info(String.format("%d or more analyses changed, evicting all cached results.", changes));
+      caches.forEach(SearchResultCache::invalidateAll);
+    } else if (!changedTags.isEmpty()) {
+      val evicted = caches.stream().mapToInt(cache -> cache.invalidate(changedTags)).sum();
+      log.debug(
+          String.format("%d analyses changed, evicted %d cached results.", changes, evicted));
+    }
+
+    watermark = latest;
+    val oldest = watermark - overlapMillis;
+    recentChanges.values().removeIf(updatedAt -> updatedAt < oldest);
+  }
+
+  private static Set<String> tagsOf(Analysis analysis) {
+    val tags = new HashSet<String>();
+    tags.add(tag(ANALYSIS_ID, analysis.getAnalysisId()));
+    Optional.ofNullable(analysis.getStudyId()).ifPresent(id -> tags.add(tag(STUDY_ID, id)));
+    Optional.ofNullable(analysis.getWorkflow())
+        .map(Workflow::getRunId)
+        .ifPresent(id -> tags.add(tag(RUN_ID, id)));
+    Optional.ofNullable(analysis.getFiles()).stream()
+        .flatMap(List::stream)
+        .map(Analysis.AnalysisFile::getObjectId)
+        .filter(Objects::nonNull)
+        .forEach(id -> tags.add(tag(FILE_OBJECT_ID, id)));
+    return tags;
+  }
+
+  private static long updatedAt(SearchHit hit) {
+    // date sort values are epoch millis
+    return ((Number) hit.getSortValues()[0]).longValue();
+  }
+}
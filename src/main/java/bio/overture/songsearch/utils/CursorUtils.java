@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.Base64;
+import lombok.SneakyThrows;
+
+/**
+ * Cursors are the sort values of the last hit of a page, serialized so that clients can treat
+ * them as opaque strings and hand them back as the search_after of the next page.
+ */
+public final class CursorUtils {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private CursorUtils() {}
+
+  @SneakyThrows
+  public static String encodeCursor(Object[] sortValues) {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(OBJECT_MAPPER.writeValueAsBytes(sortValues));
+  }
+
+  public static Object[] decodeCursor(String cursor) {
+    try {
+      return OBJECT_MAPPER.readValue(Base64.getUrlDecoder().decode(cursor), Object[].class);
+    } catch (IllegalArgumentException | IOException e) {
+      throw new IllegalArgumentException("Invalid cursor: " + cursor);
+    }
+  }
+}
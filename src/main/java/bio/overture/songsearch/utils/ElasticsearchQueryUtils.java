@@ -18,58 +18,163 @@
 
 package bio.overture.songsearch.utils;
 
+import static bio.overture.songsearch.config.constants.AggregationTypes.*;
 import static java.util.stream.Collectors.toUnmodifiableList;
 
-import bio.overture.songsearch.model.Sort;
+import bio.overture.songsearch.model.Facet;
+import bio.overture.songsearch.model.FacetResult;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Set;
 import lombok.val;
 import org.elasticsearch.index.query.*;
-import org.elasticsearch.search.sort.FieldSortBuilder;
-import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.metrics.Cardinality;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 
 public class ElasticsearchQueryUtils {
+  private static final String DEFAULT_CALENDAR_INTERVAL = "month";
+  private static final String DATE_HISTOGRAM_KEY_FORMAT = "yyyy-MM-dd";
+
   /**
-   * For each argument, find its query producer function and apply the argument value ANDing it in a
-   * bool query
+   * For each facet, find the field it aggregates on and build the aggregation of its type
    *
-   * @param args Argument Map from GraphQL
-   * @return Elasticsearch Bool Query containing ANDed (MUSTed) term queries
+   * @param dateFields facet fields mapped as dates, the only ones a dateHistogram is valid for
+   * @param facets List of Facet objects, a facet repeated is aggregated once
+   * @return List of AggregationBuilder, each named after its facet
+   * @throws InvalidFacetException when a facet's type does not apply to its field
    */
-  public static BoolQueryBuilder queryFromArgs(
-      Map<String, Function<String, AbstractQueryBuilder<?>>> QUERY_RESOLVER,
-      Map<String, Object> args) {
-    val bool = QueryBuilders.boolQuery();
-    args.forEach(
-        (key, value) ->
-            bool.must(
-                QUERY_RESOLVER
-                    .getOrDefault(key, simpleTermQueryBuilderResolver(key))
-                    .apply(value.toString())));
-    return bool;
+  public static List<AggregationBuilder> facetsToEsAggregationBuilders(
+      Map<String, String> AGGREGATION_FIELD_RESOLVER, Set<String> dateFields, List<Facet> facets) {
+    facets.forEach(facet -> validateFacet(dateFields, facet));
+    return facets.stream()
+        .distinct()
+        .map(
+            facet ->
+                facetToEsAggregationBuilder(
+                    AGGREGATION_FIELD_RESOLVER.get(facet.getFieldName()), facet))
+        .collect(toUnmodifiableList());
   }
 
   /**
-   * For each sorts, find its SortBuilder and add the sort order value then collect them all in a
-   * list
+   * Reads the buckets or value computed for a facet from the aggregations of a search response
    *
-   * @param sorts List of Sort objects
-   * @return List of FiledSortBuilder
+   * @param facet Facet that was requested
+   * @param aggregations Aggregations of the search response
+   * @return FacetResult with buckets for bucket aggregations and a value for cardinality
    */
-  public static List<FieldSortBuilder> sortsToEsSortBuilders(
-      Map<String, FieldSortBuilder> SORT_BUILDER_RESOLVER, List<Sort> sorts) {
-    return sorts.stream()
-        .map(
-            sort -> {
-              val sortBuilder = SORT_BUILDER_RESOLVER.get(sort.getFieldName());
-              return sortBuilder.order(SortOrder.fromString(sort.getOrder()));
-            })
-        .collect(toUnmodifiableList());
+  public static FacetResult esAggregationToFacetResult(Facet facet, Aggregations aggregations) {
+    final Aggregation aggregation = aggregations.get(aggregationName(facet));
+
+    if (aggregation instanceof Cardinality) {
+      val value = ((Cardinality) aggregation).getValue();
+      return new FacetResult(facet.getFieldName(), facet.getType(), value, null);
+    }
+
+    val bucketsAggregation = (MultiBucketsAggregation) aggregation;
+    val buckets =
+        bucketsAggregation.getBuckets().stream()
+            .map(bucket -> new FacetResult.Bucket(bucket.getKeyAsString(), bucket.getDocCount()))
+            .collect(toUnmodifiableList());
+    return new FacetResult(facet.getFieldName(), facet.getType(), null, buckets);
+  }
+
+  private static void validateFacet(Set<String> dateFields, Facet facet) {
+    if (DATE_HISTOGRAM.equals(facet.getType()) && !dateFields.contains(facet.getFieldName())) {
+      throw new InvalidFacetException(
+          String.format(
+              "%s is not a date, it can't be aggregated with %s",
+              facet.getFieldName(), DATE_HISTOGRAM));
+    }
+  }
+
+  private static AggregationBuilder facetToEsAggregationBuilder(String field, Facet facet) {
+    val name = aggregationName(facet);
+    if (TERMS.equals(facet.getType())) {
+      val terms = AggregationBuilders.terms(name).field(field);
+      return facet.getSize() == null ? terms : terms.size(facet.getSize());
+    }
+    if (CARDINALITY.equals(facet.getType())) {
+      return AggregationBuilders.cardinality(name).field(field);
+    }
+    if (DATE_HISTOGRAM.equals(facet.getType())) {
+      val interval = facet.getInterval() == null ? DEFAULT_CALENDAR_INTERVAL : facet.getInterval();
+      return AggregationBuilders.dateHistogram(name)
+          .field(field)
+          .calendarInterval(new DateHistogramInterval(interval))
+          .format(DATE_HISTOGRAM_KEY_FORMAT);
+    }
+    throw new IllegalArgumentException("Unsupported aggregation type: " + facet.getType());
+  }
+
+  // unique per distinct facet, the same field can be aggregated twice with different sizes
+  private static String aggregationName(Facet facet) {
+    return String.join(
+        "_",
+        facet.getFieldName(),
+        facet.getType(),
+        String.valueOf(facet.getSize()),
+        String.valueOf(facet.getInterval()));
+  }
+
+  /**
+   * Builds a search that only counts the documents matching the query. No hits, _source or sort
+   * are computed and the total is tracked exactly instead of stopping at 10,000.
+   *
+   * @param query Query to count the matches of
+   * @return SearchSourceBuilder for a count only search
+   */
+  public static SearchSourceBuilder createCountSourceBuilder(QueryBuilder query) {
+    return new SearchSourceBuilder().query(query).size(0).fetchSource(false).trackTotalHits(true);
+  }
+
+  /**
+   * Restricts the _source returned with each hit
+   *
+   * @param sourceIncludes _source fields to fetch, the whole _source when null and none when empty
+   */
+  public static SearchSourceBuilder withSourceIncludes(
+      SearchSourceBuilder searchSourceBuilder, String[] sourceIncludes) {
+    if (sourceIncludes == null) {
+      return searchSourceBuilder;
+    }
+    return sourceIncludes.length == 0
+        ? searchSourceBuilder.fetchSource(false)
+        : searchSourceBuilder.fetchSource(sourceIncludes, null);
+  }
+
+  /**
+   * Continues a search after the given sort values instead of skipping `from` hits, so deep pages
+   * cost the same as the first one
+   *
+   * @param searchAfter sort values of the last hit of the previous page, ignored when null
+   */
+  public static SearchSourceBuilder withSearchAfter(
+      SearchSourceBuilder searchSourceBuilder, Object[] searchAfter) {
+    if (searchAfter == null) {
+      return searchSourceBuilder;
+    }
+    // from has to be 0 (or unset) when search_after is used
+    return searchSourceBuilder.from(0).searchAfter(searchAfter);
+  }
+
+  /**
+   * Parses the _source of a hit straight from its json bytes, {@link SearchHit#getSourceAsMap()}
+   * would first build a map of the whole document just to convert it again
+   */
+  public static <T> T parseSource(SearchHit hit, SourceParser<T> parser) {
+    val source = hit.getSourceRef().toBytesRef();
+    return parser.parse(source.bytes, source.offset, source.length);
   }
 
-  private static Function<String, AbstractQueryBuilder<?>> simpleTermQueryBuilderResolver(
-      String key) {
-    return v -> new TermQueryBuilder(key, v);
+  @FunctionalInterface
+  public interface SourceParser<T> {
+    T parse(byte[] source, int offset, int length);
   }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.constantScoreQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.nestedQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.val;
+import org.apache.lucene.search.join.ScoreMode;
+import org.elasticsearch.index.query.QueryBuilder;
+
+/**
+ * Compiles graphql filter arguments into an Elasticsearch query. Nothing searched here is ranked,
+ * so every predicate goes in filter context where it is not scored and can be cached, and the
+ * whole query is wrapped in constant_score. Predicates on the same nested path are merged into a
+ * single nested clause, which means they have to match the same nested object (e.g. the same
+ * sample) rather than each matching any one of them.
+ */
+public final class FilterQueryCompiler {
+  private final ImmutableMap<String, FilterPath> filterPaths;
+
+  /**
+   * @param filterPaths graphql filter field name to the Elasticsearch field it matches, fields
+   *     missing from the map are matched on a field of the same name
+   */
+  public FilterQueryCompiler(@NonNull Map<String, FilterPath> filterPaths) {
+    this.filterPaths = ImmutableMap.copyOf(filterPaths);
+  }
+
+  /** @return the filter field names mapped to an Elasticsearch field */
+  public Set<String> getFilterFields() {
+    return filterPaths.keySet();
+  }
+
+  /**
+   * @param filter graphql filter argument, may be null or empty
+   * @param additionalFilters queries ANDed with the filter, also in filter context
+   * @return match_all when there is nothing to filter on, otherwise a constant_score query
+   */
+  public QueryBuilder compile(Map<String, Object> filter, QueryBuilder... additionalFilters) {
+    if ((filter == null || filter.isEmpty()) && additionalFilters.length == 0) {
+      return matchAllQuery();
+    }
+
+    val bool = boolQuery();
+    val nestedPredicates = new LinkedHashMap<String, List<QueryBuilder>>();
+    if (filter != null) {
+      filter.forEach(
+          (fieldName, value) -> {
+            val filterPath = filterPaths.getOrDefault(fieldName, FilterPath.term(fieldName));
+            val predicate = termQuery(filterPath.getField(), value.toString());
+            if (filterPath.getNestedPath() == null) {
+              bool.filter(predicate);
+            } else {
+              nestedPredicates
+                  .computeIfAbsent(filterPath.getNestedPath(), path -> new ArrayList<>())
+                  .add(predicate);
+            }
+          });
+    }
+    nestedPredicates.forEach(
+        (path, predicates) -> bool.filter(nestedQuery(path, allOf(predicates), ScoreMode.None)));
+    for (QueryBuilder additionalFilter : additionalFilters) {
+      bool.filter(additionalFilter);
+    }
+
+    return constantScoreQuery(bool);
+  }
+
+  private static QueryBuilder allOf(List<QueryBuilder> predicates) {
+    if (predicates.size() == 1) {
+      return predicates.get(0);
+    }
+    val bool = boolQuery();
+    predicates.forEach(bool::filter);
+    return bool;
+  }
+
+  /** Where a filter field lives in the index, nestedPath is null for fields outside nested docs */
+  @Value
+  public static class FilterPath {
+    String field;
+    String nestedPath;
+
+    public static FilterPath term(@NonNull String field) {
+      return new FilterPath(field, null);
+    }
+
+    public static FilterPath nestedTerm(@NonNull String nestedPath, @NonNull String field) {
+      return new FilterPath(field, nestedPath);
+    }
+  }
+}
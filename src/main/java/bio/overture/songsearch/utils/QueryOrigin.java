@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import java.util.concurrent.Callable;
+import lombok.val;
+
+/**
+ * Which GraphQL operation and field a search is sent for, so the slow query log can name it.
+ * Searches are built and sent synchronously inside a data fetcher, so the label is held by the
+ * thread for the duration of the fetcher. Searches sent later, such as batched data loader
+ * lookups, are not labelled.
+ */
+public final class QueryOrigin {
+  public static final String UNKNOWN = "unknown";
+
+  private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+  private QueryOrigin() {}
+
+  public static <T> T callAs(String origin, Callable<T> callable) throws Exception {
+    val previous = CURRENT.get();
+    CURRENT.set(origin);
+    try {
+      return callable.call();
+    } finally {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    }
+  }
+
+  public static String current() {
+    val origin = CURRENT.get();
+    return origin == null ? UNKNOWN : origin;
+  }
+}
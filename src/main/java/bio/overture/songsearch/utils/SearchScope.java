@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import lombok.NonNull;
+import lombok.val;
+
+/**
+ * What the searches sent for a GraphQL operation are bound by: the time left of the operation's
+ * budget, whether partial results are acceptable, and the request they are cancelled with. Like
+ * {@link QueryOrigin} it is held by the thread for the duration of a data fetcher or a data loader
+ * batch, searches sent outside of one are not bound. Continuations that send more searches carry
+ * it over with {@link #bound(Function)}.
+ */
+public final class SearchScope {
+  private static final ThreadLocal<SearchScope> CURRENT = new ThreadLocal<>();
+
+  private final long deadlineNanos;
+  private final boolean allowPartialResults;
+  // null when the searches outlive the request that sent them
+  private final RequestCancellation cancellation;
+
+  public SearchScope(
+      long deadlineNanos, boolean allowPartialResults, RequestCancellation cancellation) {
+    this.deadlineNanos = deadlineNanos;
+    this.allowPartialResults = allowPartialResults;
+    this.cancellation = cancellation;
+  }
+
+  public static <T> T callIn(@NonNull SearchScope scope, Callable<T> callable) throws Exception {
+    val previous = CURRENT.get();
+    CURRENT.set(scope);
+    try {
+      return callable.call();
+    } finally {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    }
+  }
+
+  /** Runs supplier in scope, or outside of any scope when scope is null */
+  public static <T> T supplyIn(SearchScope scope, @NonNull Supplier<T> supplier) {
+    if (scope == null) {
+      return supplier.get();
+    }
+    val previous = CURRENT.get();
+    CURRENT.set(scope);
+    try {
+      return supplier.get();
+    } finally {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    }
+  }
+
+  /**
+   * Binds fn to the current scope. A continuation runs on whichever thread completed the search
+   * before it, not in the data fetcher, so the searches it sends would otherwise be unbound.
+   */
+  public static <T, R> Function<T, R> bound(@NonNull Function<T, R> fn) {
+    val scope = CURRENT.get();
+    if (scope == null) {
+      return fn;
+    }
+    return t -> supplyIn(scope, () -> fn.apply(t));
+  }
+
+  /**
+   * Runs a search shared with other requests, such as a cache load, under the current budget but
+   * without cancelling it with the current request.
+   */
+  public static <T> T detached(Supplier<T> supplier) {
+    val current = CURRENT.get();
+    if (current == null || current.cancellation == null) {
+      return supplier.get();
+    }
+    CURRENT.set(new SearchScope(current.deadlineNanos, current.allowPartialResults, null));
+    try {
+      return supplier.get();
+    } finally {
+      CURRENT.set(current);
+    }
+  }
+
+  /** @return the scope of the current thread, or null outside of any */
+  public static SearchScope current() {
+    return CURRENT.get();
+  }
+
+  public long remainingMillis() {
+    return Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000);
+  }
+
+  public boolean isAllowPartialResults() {
+    return allowPartialResults;
+  }
+
+  public void register(CompletableFuture<?> future) {
+    if (cancellation != null) {
+      cancellation.register(future);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toUnmodifiableSet;
+
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import graphql.schema.DataFetchingFieldSelectionSet;
+import graphql.schema.SelectedField;
+import java.util.Arrays;
+import lombok.val;
+
+public final class SelectionSetUtils {
+  // same naming strategy the models are deserialized with, so graphql fields and es paths agree
+  private static final PropertyNamingStrategy.SnakeCaseStrategy SNAKE_CASE =
+      new PropertyNamingStrategy.SnakeCaseStrategy();
+
+  private SelectionSetUtils() {}
+
+  /**
+   * Converts the fields selected below the given result field (ex: content of a SearchResult) to
+   * the Elasticsearch _source paths backing them. Only leaf fields are converted, so object fields
+   * only fetch the subtrees that were actually selected.
+   *
+   * @param selectionSet selection set of the data fetcher
+   * @param resultField name of the field holding the documents in the result type
+   * @return _source includes for the selection, empty if no document field was selected
+   */
+  public static String[] selectionToSourceIncludes(
+      DataFetchingFieldSelectionSet selectionSet, String resultField) {
+    val prefix = resultField + "/";
+    val selectedPaths =
+        selectionSet.getFields().stream()
+            .map(SelectedField::getQualifiedName)
+            .filter(name -> name.startsWith(prefix))
+            .map(name -> name.substring(prefix.length()))
+            .filter(name -> !name.startsWith("__") && !name.contains("/__"))
+            .collect(toUnmodifiableSet());
+
+    return selectedPaths.stream()
+        .filter(path -> selectedPaths.stream().noneMatch(other -> other.startsWith(path + "/")))
+        .map(SelectionSetUtils::toSourcePath)
+        .sorted()
+        .toArray(String[]::new);
+  }
+
+  private static String toSourcePath(String qualifiedFieldName) {
+    return Arrays.stream(qualifiedFieldName.split("/"))
+        .map(SNAKE_CASE::translate)
+        .collect(joining("."));
+  }
+}
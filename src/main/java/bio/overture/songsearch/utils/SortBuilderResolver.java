@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static java.util.stream.Collectors.toUnmodifiableList;
+
+import bio.overture.songsearch.model.Sort;
+import com.google.common.collect.ImmutableMap;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import lombok.NonNull;
+import lombok.Value;
+import lombok.val;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+
+/**
+ * Resolves graphql sort fields to Elasticsearch sorts. The path and order of every field are
+ * resolved into an immutable spec up front and shared by all requests, each resolution builds a
+ * fresh FieldSortBuilder from it, so a builder modified by one request never shows up in another.
+ */
+public final class SortBuilderResolver {
+  private final ImmutableMap<String, Map<SortOrder, SortSpec>> sortSpecs;
+
+  /** @param fieldPaths graphql sort field name to the Elasticsearch field it sorts on */
+  public SortBuilderResolver(@NonNull Map<String, String> fieldPaths) {
+    val builder = ImmutableMap.<String, Map<SortOrder, SortSpec>>builder();
+    fieldPaths.forEach((fieldName, path) -> builder.put(fieldName, compile(path)));
+    this.sortSpecs = builder.build();
+  }
+
+  public FieldSortBuilder resolve(@NonNull String fieldName, @NonNull SortOrder order) {
+    val byOrder = sortSpecs.get(fieldName);
+    if (byOrder == null) {
+      throw new IllegalArgumentException("Unsupported sort field: " + fieldName);
+    }
+    return byOrder.get(order).toSortBuilder();
+  }
+
+  public FieldSortBuilder resolve(@NonNull Sort sort) {
+    return resolve(sort.getFieldName(), SortOrder.fromString(sort.getOrder()));
+  }
+
+  public List<FieldSortBuilder> resolve(@NonNull List<Sort> sorts) {
+    return sorts.stream().map(this::resolve).collect(toUnmodifiableList());
+  }
+
+  private static Map<SortOrder, SortSpec> compile(String path) {
+    // only ever read after this, EnumMap is safe to share once published through the final field
+    val byOrder = new EnumMap<SortOrder, SortSpec>(SortOrder.class);
+    for (SortOrder order : SortOrder.values()) {
+      byOrder.put(order, new SortSpec(path, order));
+    }
+    return byOrder;
+  }
+
+  @Value
+  private static class SortSpec {
+    String path;
+    SortOrder order;
+
+    FieldSortBuilder toSortBuilder() {
+      return SortBuilders.fieldSort(path).order(order);
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import lombok.val;
+
+/**
+ * Recorded _source documents the benchmarks run on. Each comes in three sizes: small (ids and a
+ * single sample), typical (one donor, a couple of files) and huge (a dozen donors with several
+ * specimens each, over a hundred files and a deep experiment).
+ */
+public class BenchmarkDocuments {
+  public static final String SMALL = "small";
+  public static final String TYPICAL = "typical";
+  public static final String HUGE = "huge";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  public static byte[] analysisSource(String size) throws IOException {
+    return read("/benchmark/analysis-" + size + ".json");
+  }
+
+  public static byte[] fileSource(String size) throws IOException {
+    return read("/benchmark/file-" + size + ".json");
+  }
+
+  // compacted like the _source Elasticsearch returns
+  private static byte[] read(String name) throws IOException {
+    try (val in = BenchmarkDocuments.class.getResourceAsStream(name)) {
+      if (in == null) {
+        throw new IOException("Missing benchmark document " + name);
+      }
+      return MAPPER.writeValueAsBytes(MAPPER.readTree(in));
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.graphql;
+
+import static graphql.schema.idl.TypeRuntimeWiring.newTypeWiring;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+import bio.overture.songsearch.BenchmarkDocuments;
+import bio.overture.songsearch.model.Analysis;
+import bio.overture.songsearch.model.SearchResult;
+import com.apollographql.federation.graphqljava.Federation;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.scalars.ExtendedScalars;
+import graphql.schema.idl.RuntimeWiring;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import lombok.val;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning a page of analyses into the json response: graphql-java resolving the selection over
+ * the models, then Jackson writing the result, as the webflux starter does. Elasticsearch is left
+ * out, the analyses field answers with the same page every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultSerializationBenchmark {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final String QUERY =
+      "{ analyses(filter: {studyId: \"PACA-CA\"}) {"
+          + " content { analysisId analysisType analysisState studyId updatedAt experiment"
+          + "   donors { donorId submitterDonorId gender"
+          + "     specimens { specimenId tumourNormalDesignation"
+          + "       samples { sampleId submitterSampleId matchedNormalSubmitterSampleId } } }"
+          + "   files { objectId name size fileType dataType }"
+          + "   workflow { runId workflowName workflowVersion } }"
+          + " info { contentCount hasNextFrom totalHits } } }";
+
+  @Param({"10", "100", "1000"})
+  public int pageSize;
+
+  private GraphQL graphQL;
+  private ExecutionResult executionResult;
+
+  @Setup
+  public void setup() throws IOException {
+    val source = BenchmarkDocuments.analysisSource(BenchmarkDocuments.TYPICAL);
+    val analysis = Analysis.parse(source, 0, source.length);
+    val page = new SearchResult<>(Collections.nCopies(pageSize, analysis), false, (long) pageSize);
+
+    val wiring =
+        RuntimeWiring.newRuntimeWiring()
+            .scalar(ExtendedScalars.Json)
+            .type(newTypeWiring("Query").dataFetcher("analyses", env -> completedFuture(page)))
+            .build();
+    val sdl = Resources.toString(Resources.getResource("schema.graphql"), Charsets.UTF_8);
+    val schema =
+        Federation.transform(sdl, wiring)
+            .fetchEntities(env -> null)
+            .resolveEntityType(env -> null)
+            .build();
+    graphQL = GraphQL.newGraphQL(schema).build();
+
+    executionResult = graphQL.execute(QUERY);
+    if (!executionResult.getErrors().isEmpty()) {
+      throw new IllegalStateException("Benchmark query failed " + executionResult.getErrors());
+    }
+  }
+
+  @Benchmark
+  public ExecutionResult execute() {
+    return graphQL.execute(QUERY);
+  }
+
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    return MAPPER.writeValueAsBytes(executionResult.toSpecification());
+  }
+
+  @Benchmark
+  public byte[] executeAndSerialize() throws IOException {
+    return MAPPER.writeValueAsBytes(graphQL.execute(QUERY).toSpecification());
+  }
+}
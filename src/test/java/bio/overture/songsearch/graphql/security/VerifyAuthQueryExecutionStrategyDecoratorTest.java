@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.graphql.security;
+
+import static graphql.schema.idl.RuntimeWiring.newRuntimeWiring;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import graphql.ExecutionInput;
+import graphql.GraphQL;
+import graphql.execution.AsyncExecutionStrategy;
+import graphql.schema.DataFetcher;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.val;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+class VerifyAuthQueryExecutionStrategyDecoratorTest {
+  private static final String SCHEMA =
+      "type Query { runs: [Run] }\n" + "type Run { runId: ID, producedAnalyses: [ID] }";
+  private static final String QUERY = "{ runs { runId producedAnalyses } }";
+  private static final String SCOPE = "song.READ";
+  private static final int RUN_COUNT = 10;
+
+  private final AtomicInteger batches = new AtomicInteger();
+
+  private final GraphQL graphQL =
+      GraphQL.newGraphQL(
+              new SchemaGenerator()
+                  .makeExecutableSchema(
+                      new SchemaParser().parse(SCHEMA),
+                      newRuntimeWiring()
+                          .type("Query", wiring -> wiring.dataFetcher("runs", runs()))
+                          .type(
+                              "Run",
+                              wiring -> wiring.dataFetcher("producedAnalyses", producedAnalyses()))
+                          .build()))
+          .queryExecutionStrategy(
+              new VerifyAuthQueryExecutionStrategyDecorator(
+                  new AsyncExecutionStrategy(), List.of(SCOPE)))
+          .build();
+
+  @Test
+  void runsAreBatchedIntoOneLoad() {
+    val result = graphQL.execute(input(SCOPE));
+
+    assertTrue(result.getErrors().isEmpty(), result.getErrors().toString());
+    assertEquals(1, batches.get());
+    Map<String, List<Map<String, Object>>> data = result.getData();
+    assertEquals(RUN_COUNT, data.get("runs").size());
+    assertEquals(List.of("analysis-run-3"), data.get("runs").get(3).get("producedAnalyses"));
+  }
+
+  @Test
+  void queryWithoutAcceptedScopeIsDenied() {
+    val result = graphQL.execute(input("song.WRITE"));
+
+    assertNull(result.getData());
+    assertEquals("Permission Denied", result.getErrors().get(0).getMessage());
+    assertEquals(0, batches.get());
+  }
+
+  private ExecutionInput input(String authority) {
+    val dataLoaders = new DataLoaderRegistry();
+    dataLoaders.register(
+        "producedAnalyses",
+        DataLoader.<String, List<String>>newDataLoader(
+            runIds -> {
+              batches.incrementAndGet();
+              return CompletableFuture.completedFuture(
+                  runIds.stream()
+                      .map(runId -> List.of("analysis-" + runId))
+                      .collect(Collectors.toList()));
+            }));
+    return ExecutionInput.newExecutionInput()
+        .query(QUERY)
+        .dataLoaderRegistry(dataLoaders)
+        .context(
+            new SecurityContextImpl(new TestingAuthenticationToken("user", null, authority)))
+        .build();
+  }
+
+  private static DataFetcher<List<Map<String, String>>> runs() {
+    return env ->
+        IntStream.range(0, RUN_COUNT)
+            .mapToObj(i -> Map.of("runId", "run-" + i))
+            .collect(Collectors.toList());
+  }
+
+  private static DataFetcher<CompletableFuture<List<String>>> producedAnalyses() {
+    return env -> {
+      Map<String, String> run = env.getSource();
+      return env.<String, List<String>>getDataLoader("producedAnalyses").load(run.get("runId"));
+    };
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.loadtest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import bio.overture.songsearch.BenchmarkDocuments;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+/**
+ * In-process stand-in for Elasticsearch that answers every _search and _msearch with the same
+ * canned page of recorded documents after a fixed latency, so the service can be loaded without a
+ * cluster. Requests to the file index get file documents, all others analysis documents.
+ */
+@Slf4j
+public class FakeElasticsearch implements AutoCloseable {
+  private static final String FILE_INDEX = "file_centric";
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMillis;
+
+  private final String analysisSearchResponse;
+  private final String fileSearchResponse;
+
+  public FakeElasticsearch(Duration latency, int hitsPerResponse) throws IOException {
+    this.latencyMillis = latency.toMillis();
+    this.analysisSearchResponse =
+        searchResponse(
+            "analysis_centric",
+            BenchmarkDocuments.analysisSource(BenchmarkDocuments.TYPICAL),
+            hitsPerResponse);
+    this.fileSearchResponse =
+        searchResponse(
+            FILE_INDEX,
+            BenchmarkDocuments.fileSource(BenchmarkDocuments.TYPICAL),
+            hitsPerResponse);
+
+    // the latency is slept on the handling thread, so every concurrent request needs its own
+    this.executor = Executors.newCachedThreadPool();
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+    log.info(
+        String.format(
+            "Fake Elasticsearch on port %d, %d hits per search after %d ms.",
+            port(), hitsPerResponse, latencyMillis));
+  }
+
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @SneakyThrows
+  private void handle(HttpExchange exchange) {
+    try {
+      val path = exchange.getRequestURI().getPath();
+      val body = new String(exchange.getRequestBody().readAllBytes(), UTF_8);
+      final String response;
+      if (path.endsWith("/_msearch")) {
+        response = multiSearchResponse(body);
+      } else if (path.endsWith("/_search")) {
+        response = path.contains(FILE_INDEX) ? fileSearchResponse : analysisSearchResponse;
+      } else {
+        send(exchange, 404, "{}");
+        return;
+      }
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      send(exchange, 200, response);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  // the body is ndjson, a header line naming the index followed by the search of each item
+  private String multiSearchResponse(String body) {
+    val responses = new StringBuilder("{\"took\":1,\"responses\":[");
+    val lines = body.split("\n");
+    for (int i = 0; i + 1 < lines.length; i += 2) {
+      if (i > 0) {
+        responses.append(',');
+      }
+      val item = lines[i].contains(FILE_INDEX) ? fileSearchResponse : analysisSearchResponse;
+      responses.append(item, 0, item.length() - 1).append(",\"status\":200}");
+    }
+    return responses.append("]}").toString();
+  }
+
+  private static void send(HttpExchange exchange, int status, String response)
+      throws IOException {
+    val bytes = response.getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+  private static String searchResponse(String index, byte[] source, int hits) {
+    val response =
+        new StringBuilder(
+            "{\"took\":1,\"timed_out\":false,"
+                + "\"_shards\":{\"total\":1,\"successful\":1,\"skipped\":0,\"failed\":0},"
+                + "\"hits\":{\"total\":{\"value\":");
+    response.append(hits).append(",\"relation\":\"eq\"},\"max_score\":null,\"hits\":[");
+    for (int i = 0; i < hits; i++) {
+      if (i > 0) {
+        response.append(',');
+      }
+      response
+          .append("{\"_index\":\"")
+          .append(index)
+          .append("\",\"_type\":\"_doc\",\"_id\":\"")
+          .append(i)
+          .append("\",\"_score\":null,\"_source\":")
+          .append(new String(source, UTF_8))
+          .append(",\"sort\":[")
+          .append(i)
+          .append("]}");
+    }
+    return response.append("]}}").toString();
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.loadtest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import bio.overture.songsearch.SongSearchApplication;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Drives a mix of GraphQL queries at a song-search instance backed by {@link FakeElasticsearch}
+ * and reports throughput and latency percentiles, entirely offline. Each virtual user sends its
+ * next query as soon as the previous one is answered, so throughput is what the instance sustains
+ * at that concurrency.
+ *
+ * <p>Settings are system properties: loadtest.concurrency, loadtest.warmup, loadtest.duration
+ * (ISO-8601 durations such as PT30S), loadtest.es.latency, loadtest.es.hits and loadtest.output.
+ * The result caches are off unless loadtest.resultCache=true, so every query reaches the stand-in.
+ */
+@Slf4j
+public class LoadTest {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private static final String ANALYSIS_ID = "0b4f4a5e-7f4c-4f57-8f4a-5e7f4cdf5701";
+  private static final String OBJECT_ID = "4d3a2c1b-9e8f-5a6b-7c8d-9e0f1a2b3c4d";
+
+  // weights roughly follow what the gateway sends
+  private static final List<Scenario> MIX =
+      List.of(
+          new Scenario(
+              "analyses",
+              40,
+              "{ analyses(filter: {studyId: \"PACA-CA\"}, page: {from: 0, size: 10}) {"
+                  + " content { analysisId analysisType analysisState studyId"
+                  + "   donors { donorId specimens { specimenId samples { sampleId } } }"
+                  + "   files { objectId name size } }"
+                  + " info { contentCount hasNextFrom totalHits } } }",
+              null),
+          new Scenario(
+              "files",
+              30,
+              "{ files(filter: {studyId: \"PACA-CA\"}, page: {from: 0, size: 10}) {"
+                  + " content { objectId studyId dataType fileType fileAccess"
+                  + "   analysis { analysisId analysisType } file { name size } }"
+                  + " info { contentCount hasNextFrom totalHits } } }",
+              null),
+          new Scenario(
+              "_entities",
+              20,
+              "query($representations: [_Any!]!) { _entities(representations: $representations) {"
+                  + " ... on Analysis { analysisId analysisType studyId }"
+                  + " ... on File { objectId dataType } } }",
+              Map.of(
+                  "representations",
+                  List.of(
+                      Map.of("__typename", "Analysis", "analysisId", ANALYSIS_ID),
+                      Map.of("__typename", "File", "objectId", OBJECT_ID)))),
+          new Scenario(
+              "sampleMatchedAnalysisPairs",
+              10,
+              "{ sampleMatchedAnalysisPairs(analysisId: \""
+                  + ANALYSIS_ID
+                  + "\") {"
+                  + " normalSampleAnalysis { analysisId } tumourSampleAnalysis { analysisId } } }",
+              null));
+
+  private final HttpClient httpClient =
+      HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+  private volatile boolean recording;
+  private volatile boolean running = true;
+
+  public static void main(String[] args) throws Exception {
+    val concurrency = Integer.getInteger("loadtest.concurrency", 64);
+    val warmup = Duration.parse(System.getProperty("loadtest.warmup", "PT10S"));
+    val duration = Duration.parse(System.getProperty("loadtest.duration", "PT60S"));
+    val esLatency = Duration.parse(System.getProperty("loadtest.es.latency", "PT0.005S"));
+    val esHits = Integer.getInteger("loadtest.es.hits", 10);
+    val resultCache = Boolean.getBoolean("loadtest.resultCache");
+    val output = new File(System.getProperty("loadtest.output", "target/loadtest-result.json"));
+
+    try (FakeElasticsearch elasticsearch = new FakeElasticsearch(esLatency, esHits);
+        ConfigurableApplicationContext app =
+            new SpringApplicationBuilder(SongSearchApplication.class)
+                .properties(
+                    "server.port=0",
+                    "elastic.host=localhost",
+                    "elastic.port=" + elasticsearch.port(),
+                    "song-search.resultCache.enabled=" + resultCache,
+                    "song-search.resultCache.invalidation.enabled=false")
+                .run(args)) {
+      val port = app.getEnvironment().getProperty("local.server.port");
+      val endpoint = URI.create("http://localhost:" + port + "/graphql");
+
+      val loadTest = new LoadTest();
+      val report = loadTest.run(endpoint, concurrency, warmup, duration);
+      report.put("concurrency", concurrency);
+      report.put("esLatencyMillis", esLatency.toMillis());
+      report.put("esHitsPerResponse", esHits);
+      report.put("resultCache", resultCache);
+
+      output.getParentFile().mkdirs();
+      MAPPER.writerWithDefaultPrettyPrinter().writeValue(output, report);
+      log.info("Load test report written to {}", output.getAbsolutePath());
+    }
+  }
+
+  private Map<String, Object> run(URI endpoint, int concurrency, Duration warmup, Duration duration)
+      throws InterruptedException {
+    val totalWeight = MIX.stream().mapToInt(Scenario::getWeight).sum();
+
+    val users = new ArrayList<CompletableFuture<Void>>();
+    for (int i = 0; i < concurrency; i++) {
+      users.add(nextRequest(endpoint, totalWeight));
+    }
+
+    log.info("Warming up for {} with {} virtual users", warmup, concurrency);
+    Thread.sleep(warmup.toMillis());
+    recording = true;
+    val start = System.nanoTime();
+    log.info("Measuring for {}", duration);
+    Thread.sleep(duration.toMillis());
+    recording = false;
+    val elapsedSeconds = (System.nanoTime() - start) / 1e9;
+    running = false;
+    users.forEach(CompletableFuture::join);
+
+    return report(elapsedSeconds);
+  }
+
+  private CompletableFuture<Void> nextRequest(URI endpoint, int totalWeight) {
+    if (!running) {
+      return CompletableFuture.completedFuture(null);
+    }
+    val scenario = pick(totalWeight);
+    val request =
+        HttpRequest.newBuilder(endpoint)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(scenario.getBody()))
+            .build();
+    val sentAt = System.nanoTime();
+    return httpClient
+        .sendAsync(request, HttpResponse.BodyHandlers.ofString(UTF_8))
+        .handle(
+            (response, e) -> {
+              if (recording) {
+                val failed =
+                    e != null
+                        || response.statusCode() != 200
+                        || response.body().contains("\"errors\"");
+                scenario.getStats().record(System.nanoTime() - sentAt, failed);
+              }
+              return null;
+            })
+        .thenCompose(ignored -> nextRequest(endpoint, totalWeight));
+  }
+
+  private static Scenario pick(int totalWeight) {
+    int remaining = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (Scenario scenario : MIX) {
+      remaining -= scenario.getWeight();
+      if (remaining < 0) {
+        return scenario;
+      }
+    }
+    return MIX.get(MIX.size() - 1);
+  }
+
+  private Map<String, Object> report(double elapsedSeconds) {
+    val overall = new Histogram(3);
+    long errors = 0;
+    val scenarios = new LinkedHashMap<String, Object>();
+    for (Scenario scenario : MIX) {
+      val scenarioStats = scenario.getStats();
+      overall.add(scenarioStats.latencies);
+      errors += scenarioStats.errors.get();
+      scenarios.put(
+          scenario.getName(),
+          summary(scenarioStats.latencies, scenarioStats.errors.get(), elapsedSeconds));
+    }
+
+    val report = new LinkedHashMap<String, Object>();
+    report.put("durationSeconds", elapsedSeconds);
+    report.put("overall", summary(overall, errors, elapsedSeconds));
+    report.put("scenarios", scenarios);
+
+    log.info(
+        String.format(
+            "%-28s %10s %8s %9s %9s %9s %9s",
+            "", "rps", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+    log.info(line("overall", overall, errors, elapsedSeconds));
+    for (Scenario scenario : MIX) {
+      val scenarioStats = scenario.getStats();
+      log.info(
+          line(
+              scenario.getName(),
+              scenarioStats.latencies,
+              scenarioStats.errors.get(),
+              elapsedSeconds));
+    }
+    return report;
+  }
+
+  private static Map<String, Object> summary(Histogram latencies, long errors, double seconds) {
+    val summary = new LinkedHashMap<String, Object>();
+    summary.put("requests", latencies.getTotalCount());
+    summary.put("errors", errors);
+    summary.put("rps", latencies.getTotalCount() / seconds);
+    summary.put("p50Millis", millis(latencies.getValueAtPercentile(50)));
+    summary.put("p99Millis", millis(latencies.getValueAtPercentile(99)));
+    summary.put("p999Millis", millis(latencies.getValueAtPercentile(99.9)));
+    summary.put("maxMillis", millis(latencies.getMaxValue()));
+    return summary;
+  }
+
+  private static String line(String name, Histogram latencies, long errors, double seconds) {
+    return String.format(
+        "%-28s %10.1f %8d %9.2f %9.2f %9.2f %9.2f",
+        name,
+        latencies.getTotalCount() / seconds,
+        errors,
+        millis(latencies.getValueAtPercentile(50)),
+        millis(latencies.getValueAtPercentile(99)),
+        millis(latencies.getValueAtPercentile(99.9)),
+        millis(latencies.getMaxValue()));
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  @Getter
+  private static class Scenario {
+    private final String name;
+    private final int weight;
+    private final byte[] body;
+    private final Stats stats = new Stats();
+
+    Scenario(String name, int weight, String query, Map<String, Object> variables) {
+      this.name = name;
+      this.weight = weight;
+      this.body = toBody(query, variables);
+    }
+
+    private static byte[] toBody(String query, Map<String, Object> variables) {
+      val body = new LinkedHashMap<String, Object>();
+      body.put("query", query);
+      if (variables != null) {
+        body.put("variables", variables);
+      }
+      try {
+        return MAPPER.writeValueAsBytes(body);
+      } catch (JsonProcessingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private static class Stats {
+    // nanoseconds, resized as needed
+    private final Histogram latencies = new ConcurrentHistogram(3);
+    private final AtomicLong errors = new AtomicLong();
+
+    void record(long latencyNanos, boolean failed) {
+      latencies.recordValue(latencyNanos);
+      if (failed) {
+        errors.incrementAndGet();
+      }
+    }
+  }
+}
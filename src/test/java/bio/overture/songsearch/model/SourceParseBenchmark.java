@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.model;
+
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.parseSource;
+
+import bio.overture.songsearch.BenchmarkDocuments;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import lombok.SneakyThrows;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.search.SearchHit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning a hit's _source into a model: through {@link SearchHit#getSourceAsMap()} and {@code
+ * convertValue} as before, versus reading the source bytes directly, with and without
+ * Afterburner, on small, typical and huge documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SourceParseBenchmark {
+  private static final ObjectMapper PLAIN_MAPPER = new ObjectMapper();
+  private static final ObjectReader PLAIN_ANALYSIS_READER = PLAIN_MAPPER.readerFor(Analysis.class);
+  private static final ObjectReader PLAIN_FILE_READER = PLAIN_MAPPER.readerFor(File.class);
+
+  @Param({BenchmarkDocuments.SMALL, BenchmarkDocuments.TYPICAL, BenchmarkDocuments.HUGE})
+  public String document;
+
+  private BytesArray analysisSource;
+  private BytesArray fileSource;
+
+  @Setup
+  public void setup() throws IOException {
+    analysisSource = new BytesArray(BenchmarkDocuments.analysisSource(document));
+    fileSource = new BytesArray(BenchmarkDocuments.fileSource(document));
+  }
+
+  @Benchmark
+  public Analysis analysisViaSourceMap() {
+    // a new hit every time, the hit keeps the map it built
+    return Analysis.parse(hit(analysisSource).getSourceAsMap());
+  }
+
+  @Benchmark
+  public Analysis analysisFromBytes() {
+    return parseSource(hit(analysisSource), Analysis::parse);
+  }
+
+  @Benchmark
+  public Analysis analysisFromBytesWithoutAfterburner() {
+    return parseSource(hit(analysisSource), SourceParseBenchmark::readPlainAnalysis);
+  }
+
+  @Benchmark
+  public File fileViaSourceMap() {
+    return File.parse(hit(fileSource).getSourceAsMap());
+  }
+
+  @Benchmark
+  public File fileFromBytes() {
+    return parseSource(hit(fileSource), File::parse);
+  }
+
+  @Benchmark
+  public File fileFromBytesWithoutAfterburner() {
+    return parseSource(hit(fileSource), SourceParseBenchmark::readPlainFile);
+  }
+
+  private static SearchHit hit(BytesArray source) {
+    return new SearchHit(0).sourceRef(source);
+  }
+
+  @SneakyThrows
+  private static Analysis readPlainAnalysis(byte[] source, int offset, int length) {
+    return PLAIN_ANALYSIS_READER.readValue(source, offset, length);
+  }
+
+  @SneakyThrows
+  private static File readPlainFile(byte[] source, int offset, int length) {
+    return PLAIN_FILE_READER.readValue(source, offset, length);
+  }
+}
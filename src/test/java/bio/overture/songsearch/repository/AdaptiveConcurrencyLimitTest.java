@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+class AdaptiveConcurrencyLimitTest {
+  private static final long SLOW_NANOS = Duration.ofSeconds(1).toNanos();
+
+  private final AtomicLong clock = new AtomicLong(1);
+  private final AdaptiveConcurrencyLimit limit =
+      new AdaptiveConcurrencyLimit(4, 2, 8, Duration.ofSeconds(1), 0.5, clock::get);
+
+  @Test
+  void refusesRequestsOverTheLimit() {
+    for (int i = 0; i < 4; i++) {
+      assertTrue(limit.tryAcquire());
+    }
+    assertFalse(limit.tryAcquire());
+
+    limit.cancel();
+    assertTrue(limit.tryAcquire());
+  }
+
+  @Test
+  void isSaturatedOnceTheLimitIsInFlight() {
+    for (int i = 0; i < 4; i++) {
+      assertFalse(limit.isSaturated());
+      limit.tryAcquire();
+    }
+    assertTrue(limit.isSaturated());
+
+    limit.cancel();
+    assertFalse(limit.isSaturated());
+  }
+
+  @Test
+  void growsWhileResponsesAreFastAndTheLimitIsUsed() {
+    for (int round = 0; round < 20; round++) {
+      val start = clock.incrementAndGet();
+      while (limit.tryAcquire()) {}
+      val inFlight = limit.getInFlight();
+      for (int i = 0; i < inFlight; i++) {
+        limit.release(start, false);
+      }
+    }
+    assertEquals(8, limit.getLimit());
+  }
+
+  @Test
+  void doesNotGrowWhenIdle() {
+    for (int i = 0; i < 100; i++) {
+      limit.tryAcquire();
+      limit.release(clock.incrementAndGet(), false);
+    }
+    assertEquals(4, limit.getLimit());
+  }
+
+  @Test
+  void cutsOncePerRoundOfSlowResponses() {
+    val start = clock.incrementAndGet();
+    for (int i = 0; i < 4; i++) {
+      limit.tryAcquire();
+    }
+    clock.addAndGet(SLOW_NANOS + 1);
+    for (int i = 0; i < 4; i++) {
+      limit.release(start, false);
+    }
+    assertEquals(2, limit.getLimit());
+
+    // requests sent after the cut can cut again, down to the minimum
+    val next = clock.incrementAndGet();
+    limit.tryAcquire();
+    limit.release(next, true);
+    assertEquals(2, limit.getLimit());
+  }
+
+  @Test
+  void cutsOnFailure() {
+    val start = clock.incrementAndGet();
+    limit.tryAcquire();
+    limit.release(start, true);
+    assertEquals(2, limit.getLimit());
+    assertEquals(0, limit.getInFlight());
+  }
+}
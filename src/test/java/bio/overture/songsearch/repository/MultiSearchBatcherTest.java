@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.val;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.jupiter.api.Test;
+
+class MultiSearchBatcherTest {
+  private static final Duration WINDOW = Duration.ofMillis(5);
+  private static final int MAX_BATCH_SIZE = 3;
+
+  private final AtomicLong clock = new AtomicLong(1);
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final RecordingTransport transport = new RecordingTransport();
+  private final ManualTimer timer = new ManualTimer();
+  private final MultiSearchBatcher batcher =
+      new MultiSearchBatcher(
+          transport, WINDOW, MAX_BATCH_SIZE, Runnable::run, meterRegistry, clock::get, timer);
+
+  @Test
+  void sendsOnceTheWindowHasPassed() {
+    batcher.submit(new SearchRequest("analysis_centric"));
+    batcher.submit(new SearchRequest("file_centric"));
+
+    assertTrue(transport.multiSearches.isEmpty());
+    assertEquals(List.of(WINDOW.toNanos()), timer.delays);
+
+    timer.elapse();
+
+    assertEquals(1, transport.multiSearches.size());
+    assertEquals(2, transport.multiSearches.get(0).requests().size());
+  }
+
+  @Test
+  void sendsAsSoonAsTheBatchIsFull() {
+    for (int i = 0; i < MAX_BATCH_SIZE; i++) {
+      batcher.submit(new SearchRequest("analysis_centric"));
+    }
+
+    assertEquals(1, transport.multiSearches.size());
+    assertEquals(MAX_BATCH_SIZE, transport.multiSearches.get(0).requests().size());
+
+    // the window the first search started has nothing left to send
+    timer.elapse();
+    assertEquals(1, transport.multiSearches.size());
+  }
+
+  @Test
+  void searchAloneInItsWindowIsNotSentAsMultiSearch() {
+    val request = new SearchRequest("analysis_centric");
+    val future = batcher.submit(request);
+
+    timer.elapse();
+
+    assertTrue(transport.multiSearches.isEmpty());
+    assertSame(request, transport.searches.get(0));
+    val response = searchResponse();
+    transport.searchListeners.get(0).onResponse(response);
+    assertSame(response, future.join());
+  }
+
+  @Test
+  void routesEachItemBackToItsCaller() {
+    val first = batcher.submit(new SearchRequest("analysis_centric"));
+    val second = batcher.submit(new SearchRequest("file_centric"));
+    timer.elapse();
+
+    val firstResponse = searchResponse();
+    val secondResponse = searchResponse();
+    transport.answer(
+        0,
+        new MultiSearchResponse.Item(firstResponse, null),
+        new MultiSearchResponse.Item(secondResponse, null));
+
+    assertSame(firstResponse, first.join());
+    assertSame(secondResponse, second.join());
+  }
+
+  @Test
+  void failedItemFailsOnlyItsCaller() {
+    val first = batcher.submit(new SearchRequest("analysis_centric"));
+    val second = batcher.submit(new SearchRequest("file_centric"));
+    timer.elapse();
+
+    val secondResponse = searchResponse();
+    transport.answer(
+        0,
+        new MultiSearchResponse.Item(null, new IllegalArgumentException("no such index")),
+        new MultiSearchResponse.Item(secondResponse, null));
+
+    val e = assertThrows(ExecutionException.class, first::get);
+    assertTrue(e.getCause() instanceof IllegalArgumentException);
+    assertSame(secondResponse, second.join());
+  }
+
+  @Test
+  void failedMultiSearchFailsEveryCaller() {
+    val first = batcher.submit(new SearchRequest("analysis_centric"));
+    val second = batcher.submit(new SearchRequest("file_centric"));
+    timer.elapse();
+
+    transport.multiSearchListeners.get(0).onFailure(new IllegalStateException("node down"));
+
+    assertThrows(ExecutionException.class, first::get);
+    assertThrows(ExecutionException.class, second::get);
+  }
+
+  @Test
+  void searchesAfterAFullBatchStartANewOne() {
+    for (int i = 0; i < MAX_BATCH_SIZE + 1; i++) {
+      batcher.submit(new SearchRequest("analysis_centric"));
+    }
+    val next = batcher.submit(new SearchRequest("analysis_centric"));
+
+    timer.elapse();
+
+    assertEquals(2, transport.multiSearches.size());
+    assertEquals(2, transport.multiSearches.get(1).requests().size());
+    assertFalse(next.isDone());
+  }
+
+  @Test
+  void recordsHowLongEachSearchWaitedForItsBatch() {
+    batcher.submit(new SearchRequest("analysis_centric"));
+    clock.addAndGet(WINDOW.toNanos());
+    batcher.submit(new SearchRequest("file_centric"));
+
+    timer.elapse();
+
+    val queueDelay = meterRegistry.get("songsearch.es.batch.queue.delay").timer();
+    assertEquals(2, queueDelay.count());
+    assertEquals(WINDOW.toNanos(), (long) queueDelay.totalTime(TimeUnit.NANOSECONDS));
+  }
+
+  private static SearchResponse searchResponse() {
+    return new SearchResponse(
+        InternalSearchResponse.empty(),
+        null,
+        1,
+        1,
+        0,
+        1,
+        ShardSearchFailure.EMPTY_ARRAY,
+        SearchResponse.Clusters.EMPTY);
+  }
+
+  // holds on to what would have been sent, the test answers it
+  private static class RecordingTransport implements MultiSearchBatcher.Transport {
+    private final List<SearchRequest> searches = new ArrayList<>();
+    private final List<ActionListener<SearchResponse>> searchListeners = new ArrayList<>();
+    private final List<MultiSearchRequest> multiSearches = new ArrayList<>();
+    private final List<ActionListener<MultiSearchResponse>> multiSearchListeners =
+        new ArrayList<>();
+
+    @Override
+    public void search(SearchRequest searchRequest, ActionListener<SearchResponse> listener) {
+      searches.add(searchRequest);
+      searchListeners.add(listener);
+    }
+
+    @Override
+    public void multiSearch(
+        MultiSearchRequest multiSearchRequest, ActionListener<MultiSearchResponse> listener) {
+      multiSearches.add(multiSearchRequest);
+      multiSearchListeners.add(listener);
+    }
+
+    private void answer(int multiSearch, MultiSearchResponse.Item... items) {
+      multiSearchListeners.get(multiSearch).onResponse(new MultiSearchResponse(items, 1));
+    }
+  }
+
+  // the window passes when the test says so
+  private static class ManualTimer implements MultiSearchBatcher.WindowTimer {
+    private final List<Runnable> flushes = new ArrayList<>();
+    private final List<Long> delays = new ArrayList<>();
+
+    @Override
+    public void schedule(Runnable flush, long delayNanos) {
+      flushes.add(flush);
+      delays.add(delayNanos);
+    }
+
+    @Override
+    public void shutdown() {}
+
+    private void elapse() {
+      val due = List.copyOf(flushes);
+      flushes.clear();
+      due.forEach(Runnable::run);
+    }
+  }
+}
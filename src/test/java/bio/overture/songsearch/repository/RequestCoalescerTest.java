@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+class RequestCoalescerTest {
+  private static final String KEY = "search|analysis_centric|{}";
+
+  private final RequestCoalescer coalescer = new RequestCoalescer();
+  private final List<CompletableFuture<String>> sent = new ArrayList<>();
+
+  // stands in for a request to Elasticsearch, answered by completing it
+  private final Supplier<CompletableFuture<String>> request =
+      () -> {
+        val future = new CompletableFuture<String>();
+        sent.add(future);
+        return future;
+      };
+
+  @Test
+  void identicalRequestsInFlightAreSentOnce() {
+    val first = coalescer.coalesce(KEY, request);
+    val second = coalescer.coalesce(KEY, request);
+
+    assertEquals(1, sent.size());
+    assertNotSame(first, second);
+
+    sent.get(0).complete("response");
+    assertEquals("response", first.join());
+    assertEquals("response", second.join());
+    assertEquals(0, coalescer.inFlightCount());
+  }
+
+  @Test
+  void answeredRequestsAreNotShared() {
+    coalescer.coalesce(KEY, request);
+    sent.get(0).complete("response");
+
+    coalescer.coalesce(KEY, request);
+    assertEquals(2, sent.size());
+  }
+
+  @Test
+  void differentRequestsAreNotShared() {
+    coalescer.coalesce(KEY, request);
+    coalescer.coalesce("msearch|" + KEY, request);
+
+    assertEquals(2, sent.size());
+    assertEquals(2, coalescer.inFlightCount());
+  }
+
+  @Test
+  void requestIsCancelledOnlyOnceEveryWaiterHasLeft() {
+    val first = coalescer.coalesce(KEY, request);
+    val second = coalescer.coalesce(KEY, request);
+    val third = coalescer.coalesce(KEY, request);
+
+    first.cancel(false);
+    second.cancel(false);
+    assertFalse(sent.get(0).isCancelled());
+
+    third.cancel(false);
+    assertTrue(sent.get(0).isCancelled());
+    assertEquals(0, coalescer.inFlightCount());
+  }
+
+  @Test
+  void remainingWaitersGetTheResponse() {
+    val first = coalescer.coalesce(KEY, request);
+    val second = coalescer.coalesce(KEY, request);
+
+    first.cancel(false);
+    sent.get(0).complete("response");
+
+    assertTrue(first.isCancelled());
+    assertEquals("response", second.join());
+  }
+
+  @Test
+  void callerArrivingAfterAbandonSendsAgain() {
+    coalescer.coalesce(KEY, request).cancel(false);
+
+    val rejoined = coalescer.coalesce(KEY, request);
+
+    assertEquals(2, sent.size());
+    assertTrue(sent.get(0).isCancelled());
+    sent.get(1).complete("response");
+    assertEquals("response", rejoined.join());
+  }
+
+  @Test
+  void abandonedRequestTakesNoMoreWaiters() {
+    val shared = coalescer.new SharedRequest<String>(KEY);
+    shared.join().cancel(false);
+
+    assertNull(shared.join());
+  }
+
+  @Test
+  void requestIsCancelledWhenItsOnlyCallerLeftBeforeItWasSent() {
+    val shared = coalescer.new SharedRequest<String>(KEY);
+    shared.join().cancel(false);
+
+    shared.send(request);
+
+    assertTrue(sent.get(0).isCancelled());
+  }
+
+  @Test
+  void failureReachesEveryWaiter() {
+    val first = coalescer.coalesce(KEY, request);
+    val second = coalescer.coalesce(KEY, request);
+
+    sent.get(0).completeExceptionally(new IllegalStateException("shard failure"));
+
+    assertThrows(ExecutionException.class, first::get);
+    assertThrows(ExecutionException.class, second::get);
+    assertEquals(0, coalescer.inFlightCount());
+  }
+
+  @Test
+  void requestThatCannotBeSentFailsItsCaller() {
+    final Supplier<CompletableFuture<String>> failing =
+        () -> {
+          throw new IllegalStateException("client closed");
+        };
+
+    val response = coalescer.coalesce(KEY, failing);
+
+    assertThrows(ExecutionException.class, response::get);
+    assertEquals(0, coalescer.inFlightCount());
+  }
+}
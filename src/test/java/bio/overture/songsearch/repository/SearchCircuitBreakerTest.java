@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.Permit.REFUSED;
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.Permit.REQUEST;
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.Permit.TRIAL;
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.State.CLOSED;
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.State.HALF_OPEN;
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.State.OPEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+class SearchCircuitBreakerTest {
+  private static final Duration OPEN_DURATION = Duration.ofSeconds(10);
+
+  private final AtomicLong clock = new AtomicLong();
+  private final SearchCircuitBreaker circuitBreaker =
+      new SearchCircuitBreaker(0.5, 10, 4, OPEN_DURATION, clock::get);
+
+  @Test
+  void staysClosedUntilMinimumRequests() {
+    for (int i = 0; i < 3; i++) {
+      assertEquals(REQUEST, circuitBreaker.tryAcquire());
+      circuitBreaker.record(REQUEST, true);
+    }
+    assertEquals(CLOSED, circuitBreaker.getState());
+
+    circuitBreaker.record(circuitBreaker.tryAcquire(), true);
+    assertEquals(OPEN, circuitBreaker.getState());
+    assertEquals(REFUSED, circuitBreaker.tryAcquire());
+  }
+
+  @Test
+  void opensOnFailureRateOverTheSlidingWindow() {
+    for (int i = 0; i < 10; i++) {
+      circuitBreaker.record(circuitBreaker.tryAcquire(), i % 3 == 2);
+    }
+    assertEquals(CLOSED, circuitBreaker.getState());
+
+    // the oldest outcomes leave the window as new ones come in
+    for (int i = 0; i < 2; i++) {
+      circuitBreaker.record(circuitBreaker.tryAcquire(), true);
+    }
+    assertEquals(OPEN, circuitBreaker.getState());
+  }
+
+  @Test
+  void letsOneTrialThroughOnceOpenDurationIsOver() {
+    open();
+    clock.addAndGet(OPEN_DURATION.toNanos());
+
+    assertEquals(TRIAL, circuitBreaker.tryAcquire());
+    assertEquals(HALF_OPEN, circuitBreaker.getState());
+    assertEquals(REFUSED, circuitBreaker.tryAcquire());
+
+    circuitBreaker.record(TRIAL, false);
+    assertEquals(CLOSED, circuitBreaker.getState());
+    assertEquals(REQUEST, circuitBreaker.tryAcquire());
+  }
+
+  @Test
+  void reopensWhenTheTrialFails() {
+    open();
+    clock.addAndGet(OPEN_DURATION.toNanos());
+    circuitBreaker.record(circuitBreaker.tryAcquire(), true);
+
+    assertEquals(OPEN, circuitBreaker.getState());
+    assertEquals(REFUSED, circuitBreaker.tryAcquire());
+  }
+
+  @Test
+  void onlyTheTrialDecidesWhetherToClose() {
+    val sentBeforeOpening = circuitBreaker.tryAcquire();
+    open();
+    clock.addAndGet(OPEN_DURATION.toNanos());
+    val trial = circuitBreaker.tryAcquire();
+
+    circuitBreaker.record(sentBeforeOpening, false);
+    assertEquals(HALF_OPEN, circuitBreaker.getState());
+    assertEquals(REFUSED, circuitBreaker.tryAcquire());
+
+    circuitBreaker.record(trial, true);
+    assertEquals(OPEN, circuitBreaker.getState());
+  }
+
+  @Test
+  void cancelledTrialLetsAnotherThrough() {
+    open();
+    clock.addAndGet(OPEN_DURATION.toNanos());
+    circuitBreaker.cancel(circuitBreaker.tryAcquire());
+
+    assertEquals(TRIAL, circuitBreaker.tryAcquire());
+  }
+
+  @Test
+  void cancelledRequestDoesNotFreeTheTrial() {
+    val sentBeforeOpening = circuitBreaker.tryAcquire();
+    open();
+    clock.addAndGet(OPEN_DURATION.toNanos());
+    circuitBreaker.tryAcquire();
+
+    circuitBreaker.cancel(sentBeforeOpening);
+    assertEquals(REFUSED, circuitBreaker.tryAcquire());
+  }
+
+  private void open() {
+    for (int i = 0; i < 4; i++) {
+      circuitBreaker.record(circuitBreaker.tryAcquire(), true);
+    }
+    assertEquals(OPEN, circuitBreaker.getState());
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.repository;
+
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.State.CLOSED;
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.State.HALF_OPEN;
+import static bio.overture.songsearch.repository.SearchCircuitBreaker.State.OPEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.val;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.jupiter.api.Test;
+
+class SearchGuardTest {
+  private static final Duration SLOW_LATENCY = Duration.ofSeconds(1);
+  private static final Duration OPEN_DURATION = Duration.ofSeconds(10);
+
+  private final AtomicLong clock = new AtomicLong(1);
+  private final AdaptiveConcurrencyLimit concurrencyLimit =
+      new AdaptiveConcurrencyLimit(2, 1, 4, SLOW_LATENCY, 0.5, clock::get);
+  private final SearchCircuitBreaker circuitBreaker =
+      new SearchCircuitBreaker(0.5, 10, 4, OPEN_DURATION, clock::get);
+  private final SearchGuard guard =
+      new SearchGuard(
+          concurrencyLimit,
+          circuitBreaker,
+          new SearchMetrics(new SimpleMeterRegistry()),
+          clock::get);
+  private final List<CompletableFuture<String>> sent = new ArrayList<>();
+
+  // stands in for a request to Elasticsearch, answered by completing it
+  private final Supplier<CompletableFuture<String>> request =
+      () -> {
+        val future = new CompletableFuture<String>();
+        sent.add(future);
+        return future;
+      };
+
+  @Test
+  void cancelledTrialLetsTheNextRequestTry() {
+    openCircuit();
+    clock.addAndGet(OPEN_DURATION.toNanos());
+
+    guard.guarded(request).cancel(false);
+    assertEquals(HALF_OPEN, circuitBreaker.getState());
+
+    val trial = guard.guarded(request);
+    assertEquals(2, sent.size());
+    sent.get(1).complete("response");
+    assertEquals("response", trial.join());
+    assertEquals(CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  void cancelledRequestGivesItsSlotBackWithoutCuttingTheLimit() {
+    val first = guard.guarded(request);
+    guard.guarded(request);
+    assertOverloaded(guard.guarded(request));
+
+    clock.addAndGet(SLOW_LATENCY.toNanos() + 1);
+    first.cancel(false);
+
+    assertEquals(1, concurrencyLimit.getInFlight());
+    assertEquals(2, concurrencyLimit.getLimit());
+  }
+
+  @Test
+  void failuresOfElasticsearchOpenTheCircuit() {
+    for (int i = 0; i < 4; i++) {
+      guard.guarded(request);
+      sent.get(i)
+          .completeExceptionally(
+              new ElasticsearchStatusException("unavailable", RestStatus.SERVICE_UNAVAILABLE));
+    }
+    assertEquals(OPEN, circuitBreaker.getState());
+    assertFalse(guard.hasRoomToSpare());
+  }
+
+  @Test
+  void badRequestsAreNotFailures() {
+    for (int i = 0; i < 4; i++) {
+      guard.guarded(request);
+      sent.get(i)
+          .completeExceptionally(
+              new ElasticsearchStatusException("bad request", RestStatus.BAD_REQUEST));
+    }
+    assertEquals(CLOSED, circuitBreaker.getState());
+    assertTrue(guard.hasRoomToSpare());
+  }
+
+  private void openCircuit() {
+    for (int i = 0; i < 4; i++) {
+      circuitBreaker.record(circuitBreaker.tryAcquire(), true);
+    }
+    assertEquals(OPEN, circuitBreaker.getState());
+  }
+
+  private static void assertOverloaded(CompletableFuture<?> response) {
+    val e = assertThrows(ExecutionException.class, response::get);
+    assertTrue(e.getCause() instanceof ElasticsearchUnavailableException);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import bio.overture.songsearch.model.Analysis;
+import bio.overture.songsearch.model.Donor;
+import bio.overture.songsearch.model.Sample;
+import bio.overture.songsearch.model.Specimen;
+import bio.overture.songsearch.service.AnalysisService.IdPair;
+import bio.overture.songsearch.service.AnalysisService.PairingIndex;
+import java.util.List;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+class PairingIndexTest {
+  private static final String TUMOUR = "Tumour";
+  private static final String NORMAL = "Normal";
+
+  @Test
+  void joinsTumoursToTheirMatchedNormals() {
+    val index =
+        new PairingIndex()
+            .add(analysis("normal-2", NORMAL, "sample-1", null))
+            .add(analysis("tumour-2", TUMOUR, "sample-4", "sample-2"))
+            .add(analysis("normal-1", NORMAL, "sample-1", null))
+            .add(analysis("tumour-1", TUMOUR, "sample-3", "sample-1"))
+            .add(analysis("normal-3", NORMAL, "sample-2", null))
+            // no normal was submitted for it
+            .add(analysis("tumour-3", TUMOUR, "sample-5", "sample-9"))
+            .seal();
+
+    assertEquals(3, index.pairCount());
+    assertEquals(
+        List.of(
+            new IdPair("normal-1", "tumour-1"),
+            new IdPair("normal-2", "tumour-1"),
+            new IdPair("normal-3", "tumour-2")),
+        index.page(0, 10));
+  }
+
+  @Test
+  void pagesRunAcrossTumours() {
+    val index =
+        new PairingIndex()
+            .add(analysis("normal-1", NORMAL, "sample-1", null))
+            .add(analysis("normal-2", NORMAL, "sample-1", null))
+            .add(analysis("normal-3", NORMAL, "sample-2", null))
+            .add(analysis("tumour-1", TUMOUR, "sample-3", "sample-1"))
+            .add(analysis("tumour-2", TUMOUR, "sample-4", "sample-2"))
+            .seal();
+
+    assertEquals(
+        List.of(new IdPair("normal-2", "tumour-1"), new IdPair("normal-3", "tumour-2")),
+        index.page(1, 2));
+    assertEquals(List.of(new IdPair("normal-3", "tumour-2")), index.page(2, 1));
+    assertEquals(List.of(), index.page(3, 2));
+  }
+
+  @Test
+  void skipsAnalysesThatCannotBePaired() {
+    val twoSamples = analysis("tumour-4", TUMOUR, "sample-6", "sample-1");
+    twoSamples
+        .getDonors()
+        .get(0)
+        .getSpecimens()
+        .get(0)
+        .setSamples(List.of(sample("sample-6", "sample-1"), sample("sample-7", "sample-1")));
+
+    val index =
+        new PairingIndex()
+            .add(analysis("normal-1", NORMAL, "sample-1", null))
+            .add(analysis("normal-2", NORMAL, null, null))
+            .add(analysis(null, TUMOUR, "sample-2", "sample-1"))
+            .add(analysis("tumour-1", null, "sample-3", "sample-1"))
+            .add(analysis("tumour-2", "Xenograft", "sample-4", "sample-1"))
+            .add(analysis("tumour-3", TUMOUR, "sample-5", null))
+            .add(twoSamples)
+            .seal();
+
+    assertEquals(0, index.pairCount());
+    assertEquals(List.of(), index.page(0, 10));
+  }
+
+  private static Analysis analysis(
+      String analysisId,
+      String tumourNormalDesignation,
+      String submitterSampleId,
+      String matchedNormalSubmitterSampleId) {
+    val specimen = new Specimen();
+    specimen.setTumourNormalDesignation(tumourNormalDesignation);
+    specimen.setSamples(List.of(sample(submitterSampleId, matchedNormalSubmitterSampleId)));
+    val donor = new Donor();
+    donor.setSpecimens(List.of(specimen));
+    val analysis = new Analysis();
+    analysis.setAnalysisId(analysisId);
+    analysis.setDonors(List.of(donor));
+    return analysis;
+  }
+
+  private static Sample sample(String submitterSampleId, String matchedNormalSubmitterSampleId) {
+    val sample = new Sample();
+    sample.setSubmitterSampleId(submitterSampleId);
+    sample.setMatchedNormalSubmitterSampleId(matchedNormalSubmitterSampleId);
+    return sample;
+  }
+}
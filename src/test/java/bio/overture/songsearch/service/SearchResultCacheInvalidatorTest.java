@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.service;
+
+import static bio.overture.songsearch.config.constants.SearchFields.STUDY_ID;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import bio.overture.songsearch.config.SongSearchProperties;
+import bio.overture.songsearch.config.SongSearchProperties.CacheSpec;
+import bio.overture.songsearch.config.SongSearchProperties.Invalidation;
+import bio.overture.songsearch.config.SongSearchProperties.ResultCache;
+import bio.overture.songsearch.repository.AnalysisRepository;
+import bio.overture.songsearch.service.SearchResultCache.CachedResult;
+import bio.overture.songsearch.service.SearchResultCache.SearchKey;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import lombok.val;
+import org.apache.lucene.search.TotalHits;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.search.DocValueFormat;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SearchResultCacheInvalidatorTest {
+  private static final Duration OVERLAP = Duration.ofSeconds(5);
+  private static final long LATEST_UPDATE = 1_000_000;
+  private static final SearchKey STUDY_1 = key("STUDY-1");
+  private static final SearchKey STUDY_2 = key("STUDY-2");
+
+  private final AnalysisRepository analysisRepository = mock(AnalysisRepository.class);
+  private final CacheSpec cacheSpec = new CacheSpec(1_000_000L, Duration.ofHours(1));
+  private final SearchResultCache<String> cache =
+      SearchResultCache.create("test", cacheSpec, new SimpleMeterRegistry());
+  private final SearchResultCacheInvalidator invalidator =
+      new SearchResultCacheInvalidator(analysisRepository, List.of(cache), properties());
+  private int loads;
+
+  @BeforeEach
+  void startFromLatestUpdate() {
+    when(analysisRepository.getLatestUpdatedAnalysis())
+        .thenReturn(response(hit("A0", "STUDY-0", LATEST_UPDATE)));
+    invalidator.poll();
+
+    cache.get(STUDY_1, this::loaded);
+    cache.get(STUDY_2, this::loaded);
+  }
+
+  @Test
+  void evictsTheEntriesChangedAnalysesAffect() {
+    updatedSince(response(hit("A1", "STUDY-1", LATEST_UPDATE + 10)));
+
+    invalidator.poll();
+
+    verify(analysisRepository)
+        .getAnalysesUpdatedSince(
+            eq(LATEST_UPDATE - OVERLAP.toMillis()), eq(1_000), any(), isNull());
+    assertNotCached(STUDY_1);
+    assertCached(STUDY_2);
+  }
+
+  @Test
+  void changesSeenAgainInTheOverlapAreNotEvictedAgain() {
+    updatedSince(response(hit("A1", "STUDY-1", LATEST_UPDATE + 10)));
+    invalidator.poll();
+    cache.get(STUDY_1, this::loaded).join();
+
+    invalidator.poll();
+
+    verify(analysisRepository)
+        .getAnalysesUpdatedSince(
+            eq(LATEST_UPDATE + 10 - OVERLAP.toMillis()), eq(1_000), any(), isNull());
+    assertCached(STUDY_1);
+  }
+
+  @Test
+  void failedPollEvictsEverything() {
+    updatedSince(CompletableFuture.failedFuture(new IllegalStateException("unreachable")));
+
+    invalidator.poll();
+
+    assertNotCached(STUDY_1);
+    assertNotCached(STUDY_2);
+  }
+
+  private void updatedSince(CompletableFuture<SearchResponse> response) {
+    when(analysisRepository.getAnalysesUpdatedSince(anyLong(), anyInt(), any(), any()))
+        .thenReturn(response);
+  }
+
+  private CompletableFuture<CachedResult<String>> loaded() {
+    loads++;
+    return CompletableFuture.completedFuture(
+        new CachedResult<>("result " + loads, 1, Set.of(), true));
+  }
+
+  private void assertCached(SearchKey key) {
+    val before = loads;
+    cache.get(key, this::loaded).join();
+    assertEquals(before, loads, "expected " + key + " to be cached");
+  }
+
+  private void assertNotCached(SearchKey key) {
+    val before = loads;
+    cache.get(key, this::loaded).join();
+    assertEquals(before + 1, loads, "expected " + key + " to be evicted");
+  }
+
+  private static SearchKey key(String studyId) {
+    return SearchKey.of(Map.of(STUDY_ID, studyId), 0, 10, List.of(), null, null);
+  }
+
+  private SongSearchProperties properties() {
+    val properties = new SongSearchProperties();
+    properties.setResultCache(
+        new ResultCache(
+            true, cacheSpec, cacheSpec, new Invalidation(true, Duration.ofSeconds(1), OVERLAP)));
+    return properties;
+  }
+
+  private static CompletableFuture<SearchResponse> response(SearchHit... hits) {
+    val searchHits =
+        new SearchHits(hits, new TotalHits(hits.length, TotalHits.Relation.EQUAL_TO), 1);
+    return CompletableFuture.completedFuture(
+        new SearchResponse(
+            new InternalSearchResponse(searchHits, null, null, null, false, null, 1),
+            null,
+            1,
+            1,
+            0,
+            1,
+            ShardSearchFailure.EMPTY_ARRAY,
+            SearchResponse.Clusters.EMPTY));
+  }
+
+  private static SearchHit hit(String analysisId, String studyId, long updatedAt) {
+    val source = String.format("{\"analysis_id\":\"%s\",\"study_id\":\"%s\"}", analysisId, studyId);
+    val hit = new SearchHit(0).sourceRef(new BytesArray(source));
+    // sorted on updated_at, as epoch millis
+    hit.sortValues(new Object[] {updatedAt}, new DocValueFormat[] {DocValueFormat.RAW});
+    return hit;
+  }
+}
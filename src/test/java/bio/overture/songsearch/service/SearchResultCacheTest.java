@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.service;
+
+import static bio.overture.songsearch.config.constants.SearchFields.ANALYSIS_ID;
+import static bio.overture.songsearch.config.constants.SearchFields.ANALYSIS_STATE;
+import static bio.overture.songsearch.config.constants.SearchFields.STUDY_ID;
+import static bio.overture.songsearch.service.SearchResultCache.tag;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import bio.overture.songsearch.config.SongSearchProperties.CacheSpec;
+import bio.overture.songsearch.model.Sort;
+import bio.overture.songsearch.service.SearchResultCache.CachedResult;
+import bio.overture.songsearch.service.SearchResultCache.SearchKey;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+class SearchResultCacheTest {
+  private static final SearchKey STUDY_1 = key(Map.of(STUDY_ID, "STUDY-1"));
+  private static final SearchKey STUDY_2 = key(Map.of(STUDY_ID, "STUDY-2"));
+  private static final SearchKey PUBLISHED = key(Map.of(ANALYSIS_STATE, "PUBLISHED"));
+
+  private final SearchResultCache<String> cache =
+      SearchResultCache.create(
+          "test",
+          new CacheSpec(1_000_000L, Duration.ofHours(1)),
+          new SimpleMeterRegistry());
+  private int loads;
+
+  @Test
+  void filterAndSourceOrderDoNotChangeTheKey() {
+    val filter = new LinkedHashMap<String, Object>();
+    filter.put(STUDY_ID, "STUDY-1");
+    filter.put(ANALYSIS_STATE, "PUBLISHED");
+    val reversedFilter = new LinkedHashMap<String, Object>();
+    reversedFilter.put(ANALYSIS_STATE, "PUBLISHED");
+    reversedFilter.put(STUDY_ID, "STUDY-1");
+
+    assertEquals(
+        SearchKey.of(
+            filter, 0, 10, List.of(sort("updatedAt", "DESC")), new String[] {"a", "b"}, null),
+        SearchKey.of(
+            reversedFilter,
+            0,
+            10,
+            List.of(sort("updatedAt", "desc")),
+            new String[] {"b", "a"},
+            null));
+  }
+
+  @Test
+  void sortOrderChangesTheKey() {
+    val updatedThenPublished = List.of(sort("updatedAt", "asc"), sort("publishedAt", "asc"));
+    val publishedThenUpdated = List.of(sort("publishedAt", "asc"), sort("updatedAt", "asc"));
+
+    assertNotEquals(
+        SearchKey.of(Map.of(), 0, 10, updatedThenPublished, null, null),
+        SearchKey.of(Map.of(), 0, 10, publishedThenUpdated, null, null));
+  }
+
+  @Test
+  void evictsEntriesWithAChangedDocumentInTheirResult() {
+    cache.get(STUDY_1, () -> loaded(tag(ANALYSIS_ID, "A1")));
+    cache.get(STUDY_2, () -> loaded(tag(ANALYSIS_ID, "A2")));
+
+    assertEquals(1, cache.invalidate(Set.of(tag(ANALYSIS_ID, "A1"))));
+    assertCached(STUDY_2);
+    assertNotCached(STUDY_1);
+  }
+
+  @Test
+  void evictsEntriesPinningAChangedId() {
+    cache.get(STUDY_1, () -> loaded());
+    cache.get(STUDY_2, () -> loaded());
+
+    // a new analysis of STUDY-1 belongs in its results, though none of them has changed
+    assertEquals(1, cache.invalidate(Set.of(tag(STUDY_ID, "STUDY-1"), tag(ANALYSIS_ID, "A3"))));
+    assertCached(STUDY_2);
+    assertNotCached(STUDY_1);
+  }
+
+  @Test
+  void evictsEntriesPinningNoIdOnAnyChange() {
+    cache.get(PUBLISHED, () -> loaded(tag(ANALYSIS_ID, "A1")));
+    cache.get(STUDY_2, () -> loaded(tag(ANALYSIS_ID, "A2")));
+
+    assertEquals(1, cache.invalidate(Set.of(tag(STUDY_ID, "STUDY-1"), tag(ANALYSIS_ID, "A3"))));
+    assertCached(STUDY_2);
+    assertNotCached(PUBLISHED);
+  }
+
+  @Test
+  void evictsLoadsInFlight() {
+    val load = new CompletableFuture<CachedResult<String>>();
+    cache.get(STUDY_2, () -> load);
+
+    // it may have read the documents before they changed
+    assertEquals(1, cache.invalidate(Set.of(tag(ANALYSIS_ID, "A1"))));
+    load.complete(new CachedResult<>("stale", 1, Set.of(), true));
+    assertNotCached(STUDY_2);
+  }
+
+  @Test
+  void disabledCacheEvictsNothing() {
+    assertEquals(0, SearchResultCache.disabled().invalidate(Set.of(tag(ANALYSIS_ID, "A1"))));
+  }
+
+  private CompletableFuture<CachedResult<String>> loaded(String... tags) {
+    loads++;
+    return CompletableFuture.completedFuture(
+        new CachedResult<>("result " + loads, 1, Set.of(tags), true));
+  }
+
+  private void assertCached(SearchKey key) {
+    val before = loads;
+    cache.get(key, () -> loaded()).join();
+    assertEquals(before, loads, "expected " + key + " to be cached");
+  }
+
+  private void assertNotCached(SearchKey key) {
+    val before = loads;
+    cache.get(key, () -> loaded()).join();
+    assertEquals(before + 1, loads, "expected " + key + " to be evicted");
+  }
+
+  private static SearchKey key(Map<String, Object> filter) {
+    return SearchKey.of(filter, 0, 10, List.of(), null, null);
+  }
+
+  private static Sort sort(String fieldName, String order) {
+    val sort = new Sort();
+    sort.setFieldName(fieldName);
+    sort.setOrder(order);
+    return sort;
+  }
+}
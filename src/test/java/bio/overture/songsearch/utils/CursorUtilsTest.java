@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static bio.overture.songsearch.utils.CursorUtils.decodeCursor;
+import static bio.overture.songsearch.utils.CursorUtils.encodeCursor;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Base64;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+class CursorUtilsTest {
+
+  @Test
+  void sortValuesRoundTrip() {
+    // a date sort value as epoch millis, then the analysis id tiebreaker
+    val sortValues = new Object[] {1_600_000_000_000L, "7f6ae0c4-a1b2-4c3d-8e9f-0123456789ab"};
+
+    assertArrayEquals(sortValues, decodeCursor(encodeCursor(sortValues)));
+  }
+
+  @Test
+  void stringsNeedingEscapesRoundTrip() {
+    val sortValues = new Object[] {"a \"quoted\", unicode é and slash/ id", null, 1.5};
+
+    assertArrayEquals(sortValues, decodeCursor(encodeCursor(sortValues)));
+  }
+
+  @Test
+  void cursorIsUrlSafe() {
+    val cursor = encodeCursor(new Object[] {"???>>>", 1_600_000_000_000L});
+
+    assertTrue(cursor.matches("[A-Za-z0-9_-]+"), cursor);
+  }
+
+  @Test
+  void rejectsCursorThatIsNotBase64() {
+    val e = assertThrows(IllegalArgumentException.class, () -> decodeCursor("not a cursor!"));
+    assertEquals("Invalid cursor: not a cursor!", e.getMessage());
+  }
+
+  @Test
+  void rejectsCursorThatIsNotAnArray() {
+    val cursor = Base64.getUrlEncoder().withoutPadding().encodeToString("{}".getBytes());
+
+    assertThrows(IllegalArgumentException.class, () -> decodeCursor(cursor));
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static bio.overture.songsearch.config.constants.AggregationTypes.CARDINALITY;
+import static bio.overture.songsearch.config.constants.AggregationTypes.DATE_HISTOGRAM;
+import static bio.overture.songsearch.config.constants.AggregationTypes.TERMS;
+import static bio.overture.songsearch.utils.ElasticsearchQueryUtils.facetsToEsAggregationBuilders;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import bio.overture.songsearch.model.Facet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+class ElasticsearchQueryUtilsTest {
+  private static final Map<String, String> FIELD_PATHS =
+      Map.of("studyId", "study_id", "publishedAt", "published_at");
+  private static final Set<String> DATE_FIELDS = Set.of("publishedAt");
+
+  @Test
+  void repeatedFacetIsAggregatedOnce() {
+    val aggregations =
+        facetsToEsAggregationBuilders(
+            FIELD_PATHS,
+            DATE_FIELDS,
+            List.of(facet("studyId", TERMS, 10), facet("studyId", TERMS, 10)));
+
+    assertEquals(1, aggregations.size());
+  }
+
+  @Test
+  void sameFieldAndTypeWithOtherSizesGetTheirOwnNames() {
+    val aggregations =
+        facetsToEsAggregationBuilders(
+            FIELD_PATHS,
+            DATE_FIELDS,
+            List.of(facet("studyId", TERMS, 10), facet("studyId", TERMS, 100)));
+
+    assertEquals(2, aggregations.size());
+    assertNotEquals(aggregations.get(0).getName(), aggregations.get(1).getName());
+  }
+
+  @Test
+  void dateHistogramOfDateFieldIsBuilt() {
+    val aggregations =
+        facetsToEsAggregationBuilders(
+            FIELD_PATHS,
+            DATE_FIELDS,
+            List.of(
+                facet("publishedAt", DATE_HISTOGRAM, null), facet("studyId", CARDINALITY, null)));
+
+    assertEquals(2, aggregations.size());
+  }
+
+  @Test
+  void dateHistogramOfKeywordIsRejected() {
+    val facets = List.of(facet("studyId", DATE_HISTOGRAM, null));
+
+    val e =
+        assertThrows(
+            InvalidFacetException.class,
+            () -> facetsToEsAggregationBuilders(FIELD_PATHS, DATE_FIELDS, facets));
+    assertEquals(InvalidFacetException.CODE, e.getExtensions().get("code"));
+  }
+
+  private static Facet facet(String fieldName, String type, Integer size) {
+    val facet = new Facet();
+    facet.setFieldName(fieldName);
+    facet.setType(type);
+    facet.setSize(size);
+    return facet;
+  }
+}
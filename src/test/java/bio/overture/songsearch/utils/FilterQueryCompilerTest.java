@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath.nestedTerm;
+import static bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath.term;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import java.util.List;
+import java.util.Map;
+import lombok.SneakyThrows;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.junit.jupiter.api.Test;
+
+class FilterQueryCompilerTest {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final FilterQueryCompiler compiler =
+      new FilterQueryCompiler(
+          ImmutableMap.<String, FilterQueryCompiler.FilterPath>builder()
+              .put("analysisId", term("analysis_id"))
+              .put("studyId", term("study_id"))
+              .put("donorId", nestedTerm("donors", "donors.donor_id"))
+              .put(
+                  "sampleId",
+                  nestedTerm("donors.specimens.samples", "donors.specimens.samples.sample_id"))
+              .put(
+                  "submitterSampleId",
+                  nestedTerm(
+                      "donors.specimens.samples", "donors.specimens.samples.submitter_sample_id"))
+              .build());
+
+  @Test
+  void emptyFilterMatchesAll() {
+    assertQuery("{'match_all':{'boost':1.0}}", compiler.compile(null));
+    assertQuery("{'match_all':{'boost':1.0}}", compiler.compile(Map.of()));
+  }
+
+  @Test
+  void predicatesAreInFilterContext() {
+    assertQuery(
+        "{'constant_score':{'filter':{'bool':{'filter':["
+            + "{'term':{'analysis_id':{'value':'A1','boost':1.0}}},"
+            + "{'term':{'study_id':{'value':'TEST-CA','boost':1.0}}}"
+            + "],'adjust_pure_negative':true,'boost':1.0}},'boost':1.0}}",
+        compiler.compile(ImmutableMap.of("analysisId", "A1", "studyId", "TEST-CA")));
+  }
+
+  @Test
+  void nestedPredicatesOnTheSamePathAreMerged() {
+    assertQuery(
+        "{'constant_score':{'filter':{'bool':{'filter':["
+            + "{'term':{'analysis_id':{'value':'A1','boost':1.0}}},"
+            + "{'nested':{'query':{'bool':{'filter':["
+            + "{'term':{'donors.specimens.samples.sample_id':{'value':'SA1','boost':1.0}}},"
+            + "{'term':{'donors.specimens.samples.submitter_sample_id':"
+            + "{'value':'SUB1','boost':1.0}}}"
+            + "],'adjust_pure_negative':true,'boost':1.0}},"
+            + "'path':'donors.specimens.samples','ignore_unmapped':false,"
+            + "'score_mode':'none','boost':1.0}},"
+            + "{'nested':{'query':{'term':{'donors.donor_id':{'value':'DO1','boost':1.0}}},"
+            + "'path':'donors','ignore_unmapped':false,'score_mode':'none','boost':1.0}}"
+            + "],'adjust_pure_negative':true,'boost':1.0}},'boost':1.0}}",
+        compiler.compile(
+            ImmutableMap.<String, Object>builder()
+                .put("sampleId", "SA1")
+                .put("analysisId", "A1")
+                .put("donorId", "DO1")
+                .put("submitterSampleId", "SUB1")
+                .build()));
+  }
+
+  @Test
+  void unknownFieldsAreMatchedByName() {
+    assertQuery(
+        "{'constant_score':{'filter':{'bool':{'filter':["
+            + "{'term':{'experiment.experimental_strategy':{'value':'WGS','boost':1.0}}}"
+            + "],'adjust_pure_negative':true,'boost':1.0}},'boost':1.0}}",
+        compiler.compile(Map.of("experiment.experimental_strategy", "WGS")));
+  }
+
+  @Test
+  void additionalFiltersAreAndedAfterTheFilter() {
+    assertQuery(
+        "{'constant_score':{'filter':{'bool':{'filter':["
+            + "{'term':{'study_id':{'value':'TEST-CA','boost':1.0}}},"
+            + "{'terms':{'analysis_id':['A1','A2'],'boost':1.0}}"
+            + "],'adjust_pure_negative':true,'boost':1.0}},'boost':1.0}}",
+        compiler.compile(
+            Map.of("studyId", "TEST-CA"), termsQuery("analysis_id", List.of("A1", "A2"))));
+    assertQuery(
+        "{'constant_score':{'filter':{'bool':{'filter':["
+            + "{'terms':{'analysis_id':['A1'],'boost':1.0}}"
+            + "],'adjust_pure_negative':true,'boost':1.0}},'boost':1.0}}",
+        compiler.compile(null, termsQuery("analysis_id", List.of("A1"))));
+  }
+
+  @SneakyThrows
+  private static void assertQuery(String expected, QueryBuilder query) {
+    assertEquals(json(expected), MAPPER.readTree(Strings.toString(query)));
+  }
+
+  @SneakyThrows
+  private static JsonNode json(String singleQuoted) {
+    return MAPPER.readTree(singleQuoted.replace('\'', '"'));
+  }
+}
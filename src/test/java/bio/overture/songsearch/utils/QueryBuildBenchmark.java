@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath.nestedTerm;
+import static bio.overture.songsearch.utils.FilterQueryCompiler.FilterPath.term;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
+
+import bio.overture.songsearch.model.Sort;
+import com.google.common.collect.ImmutableMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.val;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the search request of a GraphQL query: compiling its filter, resolving its sorts and
+ * rendering the source that goes over the wire. The field paths mirror the analysis repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBuildBenchmark {
+  private static final FilterQueryCompiler COMPILER =
+      new FilterQueryCompiler(
+          ImmutableMap.<String, FilterQueryCompiler.FilterPath>builder()
+              .put("analysisId", term("analysis_id"))
+              .put("analysisType", term("analysis_type"))
+              .put("analysisState", term("analysis_state"))
+              .put("studyId", term("study_id"))
+              .put("runId", term("workflow.run_id"))
+              .put("donorId", nestedTerm("donors", "donors.donor_id"))
+              .put("specimenId", nestedTerm("donors.specimens", "donors.specimens.specimen_id"))
+              .put(
+                  "sampleId",
+                  nestedTerm("donors.specimens.samples", "donors.specimens.samples.sample_id"))
+              .put(
+                  "submitterSampleId",
+                  nestedTerm(
+                      "donors.specimens.samples", "donors.specimens.samples.submitter_sample_id"))
+              .build());
+
+  private static final SortBuilderResolver SORT_RESOLVER =
+      new SortBuilderResolver(
+          ImmutableMap.<String, String>builder()
+              .put("analysisId", "analysis_id")
+              .put("analysisState", "analysis_state")
+              .put("publishedAt", "published_at")
+              .put("updatedAt", "updated_at")
+              .put("firstPublishedAt", "first_published_at")
+              .build());
+
+  private static final Map<String, Object> SIMPLE_FILTER = Map.of("studyId", "PACA-CA");
+
+  private static final Map<String, Object> NESTED_FILTER =
+      Map.of(
+          "studyId", "PACA-CA",
+          "analysisType", "sequencing_alignment",
+          "analysisState", "PUBLISHED",
+          "donorId", "DO35228",
+          "specimenId", "SP77825",
+          "sampleId", "SA541635",
+          "submitterSampleId", "PCSI_0633_Pa_P_526");
+
+  private static final List<String> IDS =
+      List.of(
+          "0b4f4a5e-7f4c-4f57-8f4a-5e7f4cdf5701",
+          "5e4b3d2c-0f9a-6b7c-8d9e-0f1a2b3c4d5e",
+          "b6e2d0f4-1a3c-4e5f-8a7b-9c0d1e2f3a4b");
+
+  private static final List<Sort> SORTS =
+      List.of(sort("publishedAt", "desc"), sort("analysisState", "asc"));
+
+  @Benchmark
+  public QueryBuilder compileEmptyFilter() {
+    return COMPILER.compile(Map.of());
+  }
+
+  @Benchmark
+  public QueryBuilder compileSimpleFilter() {
+    return COMPILER.compile(SIMPLE_FILTER);
+  }
+
+  @Benchmark
+  public QueryBuilder compileNestedFilter() {
+    return COMPILER.compile(NESTED_FILTER);
+  }
+
+  @Benchmark
+  public QueryBuilder compileFilterWithIds() {
+    return COMPILER.compile(SIMPLE_FILTER, termsQuery("analysis_id", IDS));
+  }
+
+  @Benchmark
+  public List<FieldSortBuilder> resolveSorts() {
+    return SORT_RESOLVER.resolve(SORTS);
+  }
+
+  @Benchmark
+  public String renderSearchSource() {
+    val searchSourceBuilder =
+        new SearchSourceBuilder().query(COMPILER.compile(NESTED_FILTER)).size(10).from(0);
+    SORT_RESOLVER.resolve(SORTS).forEach(searchSourceBuilder::sort);
+    return Strings.toString(searchSourceBuilder);
+  }
+
+  private static Sort sort(String fieldName, String order) {
+    val sort = new Sort();
+    sort.setFieldName(fieldName);
+    sort.setOrder(order);
+    return sort;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SearchScopeTest {
+  private static final long BUDGET_NANOS = Duration.ofMinutes(1).toNanos();
+
+  private final RequestCancellation cancellation = new RequestCancellation();
+  private final SearchScope scope =
+      new SearchScope(System.nanoTime() + BUDGET_NANOS, false, cancellation);
+  // stands in for the thread that completes a search
+  private final ExecutorService responseThread = Executors.newSingleThreadExecutor();
+
+  @AfterEach
+  void shutdown() {
+    responseThread.shutdownNow();
+  }
+
+  @Test
+  void scopeIsCurrentOnlyWhileSupplying() {
+    val inScope = SearchScope.supplyIn(scope, SearchScope::current);
+
+    assertSame(scope, inScope);
+    assertNull(SearchScope.current());
+  }
+
+  @Test
+  void nestedScopeRestoresTheOuterOne() {
+    val inner = new SearchScope(System.nanoTime(), true, null);
+
+    val restored =
+        SearchScope.supplyIn(
+            scope,
+            () -> {
+              SearchScope.supplyIn(inner, SearchScope::current);
+              return SearchScope.current();
+            });
+
+    assertSame(scope, restored);
+  }
+
+  @Test
+  void boundContinuationRunsInTheScopeItWasBoundIn() {
+    val continuation = SearchScope.supplyIn(scope, SearchScopeTest::currentScopeContinuation);
+
+    val onResponseThread =
+        CompletableFuture.supplyAsync(() -> "response", responseThread)
+            .thenApplyAsync(continuation, responseThread)
+            .join();
+    val afterwards = CompletableFuture.supplyAsync(SearchScope::current, responseThread).join();
+
+    assertSame(scope, onResponseThread);
+    assertNull(afterwards);
+  }
+
+  @Test
+  void continuationBoundOutsideOfAnyScopeIsUnbound() {
+    val continuation = currentScopeContinuation();
+
+    val onResponseThread =
+        CompletableFuture.supplyAsync(() -> "response", responseThread)
+            .thenApplyAsync(continuation, responseThread)
+            .join();
+
+    assertNull(onResponseThread);
+  }
+
+  @Test
+  void detachedSearchKeepsTheBudgetButIsNotCancelledWithTheRequest() {
+    val detached = SearchScope.supplyIn(scope, () -> SearchScope.detached(SearchScope::current));
+    val shared = new CompletableFuture<String>();
+    val own = new CompletableFuture<String>();
+    detached.register(shared);
+    scope.register(own);
+
+    cancellation.cancel();
+
+    assertFalse(shared.isCancelled());
+    assertTrue(own.isCancelled());
+    assertTrue(detached.remainingMillis() > 0);
+    assertEquals(scope.isAllowPartialResults(), detached.isAllowPartialResults());
+  }
+
+  @Test
+  void noBudgetIsLeftPastTheDeadline() {
+    val expired = new SearchScope(System.nanoTime() - 1, false, null);
+
+    assertEquals(0, expired.remainingMillis());
+  }
+
+  // a continuation that sends a search would send it in the scope it finds
+  private static Function<String, SearchScope> currentScopeContinuation() {
+    return SearchScope.bound(response -> SearchScope.current());
+  }
+}
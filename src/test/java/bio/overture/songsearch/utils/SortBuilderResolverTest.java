@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 The Ontario Institute for Cancer Research. All rights reserved
+ *
+ * This program and the accompanying materials are made available under the terms of the GNU Affero General Public License v3.0.
+ * You should have received a copy of the GNU Affero General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT
+ * SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER
+ * IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ * ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package bio.overture.songsearch.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import bio.overture.songsearch.model.Sort;
+import java.util.Map;
+import lombok.val;
+import org.elasticsearch.search.sort.SortOrder;
+import org.junit.jupiter.api.Test;
+
+class SortBuilderResolverTest {
+  private static final Map<String, String> FIELD_PATHS =
+      Map.of(
+          "analysisId", "analysis_id",
+          "analysisState", "analysis_state",
+          "publishedAt", "published_at",
+          "updatedAt", "updated_at");
+
+  private final SortBuilderResolver resolver = new SortBuilderResolver(FIELD_PATHS);
+
+  @Test
+  void resolvesFieldAndOrder() {
+    val sortBuilder = resolver.resolve(sort("publishedAt", "desc"));
+
+    assertEquals("published_at", sortBuilder.getFieldName());
+    assertEquals(SortOrder.DESC, sortBuilder.order());
+  }
+
+  @Test
+  void buildsAFreshBuilderForEveryRequest() {
+    val first = resolver.resolve("updatedAt", SortOrder.ASC);
+    val second = resolver.resolve(sort("updatedAt", "asc"));
+
+    assertNotSame(first, second);
+    assertEquals(first, second);
+  }
+
+  @Test
+  void modifyingABuilderDoesNotAffectOtherRequests() {
+    resolver.resolve("updatedAt", SortOrder.ASC).order(SortOrder.DESC).unmappedType("date");
+
+    val sortBuilder = resolver.resolve("updatedAt", SortOrder.ASC);
+    assertEquals(SortOrder.ASC, sortBuilder.order());
+    assertNull(sortBuilder.unmappedType());
+  }
+
+  @Test
+  void rejectsUnknownField() {
+    assertThrows(IllegalArgumentException.class, () -> resolver.resolve("unknown", SortOrder.ASC));
+  }
+
+  private static Sort sort(String fieldName, String order) {
+    val sort = new Sort();
+    sort.setFieldName(fieldName);
+    sort.setOrder(order);
+    return sort;
+  }
+}